@@ -0,0 +1,23 @@
+#!/bin/sh
+# Compares two result files written by "make bench", eg.
+#   bench/compare.sh bench/results/v1.csv bench/results/v2.csv
+# For each benchmark in both, prints the two scores and new/old. Remember
+# that for throughput (thrpt) higher is better, and for avgt lower is.
+if [ $# -ne 2 ]; then
+  echo "usage: $0 old.csv new.csv" >&2
+  exit 2
+fi
+awk -F, '
+  function key(   k, i) {
+    k = $1" "$2" t="$3
+    for (i = 8; i <= NF; ++i) if ($i != "") k = k" "$i
+    return k
+  }
+  { gsub(/"/, "") }
+  FNR == 1 { next }
+  NR == FNR { old[key()] = $5; next }
+  (key() in old) {
+    ratio = old[key()] == 0 ? "-" : sprintf("%.2f", $5/old[key()])
+    printf "%-70s %12.3f %12.3f %-7s %s\n", key(), old[key()], $5, $7, ratio
+  }
+' "$1" "$2"
@@ -0,0 +1,83 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes all the results to one CSV file, so two
+ * versions can be compared with bench/compare.sh. The JobPool benchmarks are
+ * run at each of several thread counts; JMH can't sweep those itself.
+ *
+ * Usage: BenchMain results.csv [benchmark-regexp]
+ */
+public class BenchMain {
+    static final int[] CONTENDED_THREADS = { 1, 4, 16, 64 };
+
+    public static void main(String[] args)
+            throws RunnerException, FileNotFoundException
+    {
+        if (args.length < 1) {
+            System.err.println("Usage: BenchMain results.csv [regexp]");
+            System.exit(2);
+        }
+        String filter = args.length > 1 ? args[1] : ".*";
+        Collection<RunResult> results = new ArrayList<RunResult>();
+
+        Options single = new OptionsBuilder()
+            .include(filter)
+            .exclude(JobPoolBenchmark.class.getSimpleName())
+            .threads(1)
+            .build();
+        try {
+            results.addAll(new Runner(single).run());
+        } catch (NoBenchmarksException e) {
+            // the filter only picked out contended ones
+        }
+
+        if (Pattern.compile(filter).matcher(
+                JobPoolBenchmark.class.getName()).find()) {
+            for (int threads : CONTENDED_THREADS) {
+                Options contended = new OptionsBuilder()
+                    .include(JobPoolBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+                results.addAll(new Runner(contended).run());
+            }
+        }
+
+        PrintStream out = new PrintStream(args[0]);
+        ResultFormatFactory.getInstance(ResultFormatType.CSV, out)
+                           .writeOut(results);
+        out.close();
+    }
+}
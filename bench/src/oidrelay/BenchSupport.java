@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of a servlet container for the benchmarks: requests, responses
+ * and async contexts built from proxies, with output going nowhere.
+ */
+class BenchSupport {
+    /** An output stream which is always ready and throws everything away. */
+    static class NullOutput extends ServletOutputStream {
+        long bytes = 0;
+        public void write(int b) { ++bytes; }
+        public void write(byte[] b, int off, int len) { bytes += len; }
+        public boolean isReady() { return true; }
+        public void setWriteListener(WriteListener l) { }
+    }
+
+    static HttpServletResponse response(final ServletOutputStream out) {
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                if (m.getName().equals("getOutputStream")) return out;
+                if (m.getName().equals("isCommitted")) return Boolean.FALSE;
+                return null;
+            }
+        });
+    }
+
+    static HttpServletRequest request(final String user, final String uri) {
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                if (m.getName().equals("getRemoteUser")) return user;
+                if (m.getName().equals("getRequestURI")) return uri;
+                if (m.getName().equals("getContextPath")) return "";
+                if (m.getName().equals("getProtocol")) return "HTTP/1.1";
+                return null;
+            }
+        });
+    }
+
+    /** An AsyncContext which counts calls to complete(). */
+    static AsyncContext async(final ServletResponse resp,
+                              final AtomicLong completed) {
+        return proxy(AsyncContext.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                if (m.getName().equals("getResponse")) return resp;
+                if (m.getName().equals("complete")) completed.incrementAndGet();
+                return null;
+            }
+        });
+    }
+
+    /** A ServletConfig to init() a servlet with. Its context keeps no
+     *  attributes, and logs to stderr. */
+    static ServletConfig config() {
+        final ServletContext ctx = proxy(ServletContext.class,
+                                         new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                if (m.getName().equals("getContextPath")) return "";
+                if (m.getName().equals("log")) System.err.println(args[0]);
+                return null;
+            }
+        });
+        return proxy(ServletConfig.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                if (m.getName().equals("getServletContext")) return ctx;
+                if (m.getName().equals("getServletName")) return "bench";
+                return null;
+            }
+        });
+    }
+
+    /** A RequestHandler that formats nothing at all. */
+    static GetFromPostServlet.RequestHandler nullHandler() {
+        return new GetFromPostServlet.RequestHandler() {
+            public void formatPostResult(HttpServletResponse resp,
+                                         boolean dispatched) { }
+            public void formatReplyHeader(ServletResponse resp, String e) { }
+            public void formatReplyKeepalive(ServletResponse resp, int n) { }
+            public void formatReplyResult(ServletResponse resp, Payload b) { }
+            public void formatReplyComplete(ServletResponse resp, String m) { }
+            public void formatReplyTaggedResult(ServletResponse resp, String t,
+                                                Payload b) { }
+            public void formatReplyTaggedComplete(ServletResponse resp,
+                                                  String t, String m) { }
+            public boolean validateReplyRequest(HttpServletRequest req,
+                                                HttpServletResponse resp)
+            { return true; }
+        };
+    }
+
+    static <T> T proxy(Class<T> c, InvocationHandler h) {
+        return c.cast(Proxy.newProxyInstance(BenchSupport.class.getClassLoader(),
+                                             new Class<?>[] { c }, h));
+    }
+
+    static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
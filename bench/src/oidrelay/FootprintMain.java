@@ -0,0 +1,124 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Measures the heap a parked GET keeps hold of, for sizing a node: parks
+ * that many GETs on a TestServlet through doGet, lets each send its header
+ * and go idle, and divides the growth in the live heap by their number.
+ *
+ * The container's own request, response and AsyncContext aren't counted;
+ * every GET here shares one set of stand-ins for them. What is left is the
+ * relay's own state: the Job, its token, output buffer and table entries.
+ * The node's fixed costs (the shards' tables and wheels, the pool) are
+ * divided among the GETs too, so the figure falls as they grow. On a
+ * one-core box (one shard) it was about 300 bytes for 1,000,000 GETs over
+ * 1,000 users, 400 for 100,000 over 1,000, and 700 to 1,400 for 20,000 over
+ * 100. Quote it with the counts it was measured at.
+ *
+ * Usage: FootprintMain [connections [users]]
+ */
+public class FootprintMain {
+    public static void main(String[] args)
+            throws ServletException, java.io.IOException
+    {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        TestServlet servlet = new TestServlet();
+        servlet.maxParkedGets = servlet.maxParkedGetsPerUser = 0;
+        servlet.maxQueuedRuns = 0;
+        servlet.init(BenchSupport.config());
+        final AtomicLong errors = new AtomicLong();
+        final HttpServletResponse resp = countErrors(BenchSupport.response(
+            new BenchSupport.NullOutput()), errors);
+        AsyncContext async = BenchSupport.async(resp, new AtomicLong());
+        HttpServletRequest[] reqs = new HttpServletRequest[users];
+        for (int u = 0; u < users; ++u)
+            reqs[u] = request("user"+u, async);
+
+        long before = usedHeap();
+        for (int i = 0; i < n; ++i) servlet.doGet(reqs[i % users], resp);
+        while (servlet.metrics.pendingJobs.sum() +
+               errors.get() < n)
+            BenchSupport.sleep(10);
+        // Let the first runs (the headers) finish too
+        BenchSupport.sleep(1000);
+        long after = usedHeap();
+
+        System.out.printf("%d GETs parked for %d users (%d refused): "+
+                          "%d bytes each%n", n, users, errors.get(),
+                          (after - before)/Math.max(1, n - errors.get()));
+        servlet.destroy();
+    }
+
+    static HttpServletRequest request(final String user,
+                                      final AsyncContext async) {
+        return BenchSupport.proxy(HttpServletRequest.class,
+                                  new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+                String name = m.getName();
+                if (name.equals("getRemoteUser")) return user;
+                if (name.equals("getProtocol")) return "HTTP/1.1";
+                if (name.equals("getRequestURI")) return "/api";
+                if (name.equals("getContextPath")) return "";
+                if (name.equals("getRequestURL"))
+                    return new StringBuffer("http://relay.example.com/api");
+                if (name.equals("getParameter"))
+                    return "id".equals(args[0]) ? "x" : null;
+                if (name.equals("startAsync")) return async;
+                return null;
+            }
+        });
+    }
+
+    static HttpServletResponse countErrors(final HttpServletResponse resp,
+                                           final AtomicLong errors) {
+        return BenchSupport.proxy(HttpServletResponse.class,
+                                  new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args)
+                    throws Throwable {
+                if (m.getName().equals("sendError")) errors.incrementAndGet();
+                return m.invoke(resp, args);
+            }
+        });
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Until a collection stops finding anything more to free
+        for (int i = 0; i < 10; ++i) {
+            System.gc();
+            BenchSupport.sleep(50);
+            long u = rt.totalMemory() - rt.freeMemory();
+            if (u >= used) break;
+            used = u;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Render cost of each part of the HtmlOutputFormatter reply. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatterBenchmark {
+    // The keepalive number; the old formatter's cost grew with it
+    @Param({"1", "1000"})
+    int n;
+
+    TestServlet servlet;
+    GetFromPostServlet.RequestHandler handler;
+    BenchSupport.NullOutput out;
+    HttpServletResponse resp;
+    String endpoint = "https://relay.example.com/oidrelay/u/alice/"+
+                      "return-for-0123456789abcdef0123456789abcdef";
+    Payload body = Payload.wrap(
+        "openid.mode=id_res&openid.claimed_id=https%3A%2F%2Fexample.com%2F"
+        .getBytes(ByteTemplate.UTF8));
+
+    @Setup
+    public void setup() {
+        servlet = new TestServlet();
+        handler = servlet.requestHandler;
+        out = new BenchSupport.NullOutput();
+        resp = BenchSupport.response(out);
+    }
+
+    @TearDown
+    public void teardown() { servlet.destroy(); }
+
+    @Benchmark
+    public long replyHeader() throws IOException {
+        handler.formatReplyHeader(resp, endpoint);
+        return out.bytes;
+    }
+
+    @Benchmark
+    public long replyKeepalive() throws IOException {
+        handler.formatReplyKeepalive(resp, n);
+        return out.bytes;
+    }
+
+    @Benchmark
+    public long replyResult() throws IOException {
+        handler.formatReplyResult(resp, body);
+        return out.bytes;
+    }
+
+    @Benchmark
+    public long replyComplete() throws IOException {
+        handler.formatReplyComplete(resp, "OK: dummy result for now");
+        return out.bytes;
+    }
+
+    @Benchmark
+    public long postResult() throws IOException {
+        handler.formatPostResult(resp, true);
+        return out.bytes;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.*;
+
+import oidrelay.GetFromPostServlet.TokenRequest;
+import oidrelay.GetFromPostServlet.TokenWithEndpoint;
+
+/**
+ * The JobPool's hand-offs under contention. BenchMain runs this with 1 to 64
+ * threads; each thread parks a job and then delivers to it, as a GET followed
+ * by its POST would. Jobs finish asynchronously on the pool's workers (under
+ * each executionMode), and each iteration waits for them all before it ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobPoolBenchmark {
+    // "virtual" falls back to platform threads (with a warning) before Java 21
+    @Param({"platform", "virtual"})
+    String executionMode;
+
+    GetFromPostServlet servlet;
+    PerUserTokenFactory factory;
+    TokenRequest req;
+    AsyncContext async;
+    final AtomicLong added = new AtomicLong();
+    final AtomicLong completed = new AtomicLong();
+    // Never released, so every delivery can take a reference to it
+    final Payload body = Payload.wrap("OK".getBytes(ByteTemplate.UTF8));
+
+    @Setup(Level.Trial)
+    public void setup() throws ServletException {
+        servlet = new GetFromPostServlet();
+        servlet.executionMode = executionMode;
+        servlet.requestHandler = BenchSupport.nullHandler();
+        servlet.tokenFactory = factory = new PerUserTokenFactory("/u/");
+        servlet.init(BenchSupport.config());
+        req = GetFromPostServlet.tokenRequest(
+            BenchSupport.request("alice", null));
+        async = BenchSupport.async(BenchSupport.response(
+                                       new BenchSupport.NullOutput()), completed);
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() {
+        while (completed.get() < added.get()) BenchSupport.sleep(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() { servlet.destroy(); }
+
+    @Benchmark
+    public boolean addAndDeliver() throws ServletException {
+        TokenWithEndpoint tok = factory.mintToken(req);
+        added.incrementAndGet();
+        servlet.pool.addJob(servlet.new Job(async, tok, servlet.pool,
+                                            "http://localhost"));
+        return servlet.pool.sendResult(tok, body);
+    }
+
+    /** A POST for a token nobody is waiting on: just the shard round trip. */
+    @Benchmark
+    public boolean deliverMiss() throws ServletException {
+        return servlet.pool.sendResult(factory.mintToken(req), body);
+    }
+}
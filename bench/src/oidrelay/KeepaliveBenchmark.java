@@ -0,0 +1,70 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of one timer tick against the number of pending jobs. Each job is a
+ * timer which reschedules itself every keepaliveMs, as a Job does, so a tick
+ * should cost in proportion to pending/keepaliveMs and not to pending.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeepaliveBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int pending;
+    @Param({"10", "1000"})
+    int keepaliveMs;
+
+    static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static final class Keepalive extends TimingWheel.Timer {
+        final long interval;
+        Keepalive(long interval_) { interval = interval_; }
+        protected void expire(TimingWheel wheel, long now)
+        { wheel.schedule(this, now + interval); }
+    }
+
+    TimingWheel wheel;
+    long now = 0;
+
+    @Setup
+    public void setup() {
+        wheel = new TimingWheel(TICK, 0);
+        long interval = TimeUnit.MILLISECONDS.toNanos(keepaliveMs);
+        Random r = new Random(1);
+        for (int i = 0; i < pending; ++i)
+            wheel.schedule(new Keepalive(interval),
+                           1 + (long)(r.nextDouble()*interval));
+    }
+
+    @Benchmark
+    public int tick() {
+        now += TICK;
+        wheel.advance(now);
+        return wheel.size();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.*;
+
+import oidrelay.GetFromPostServlet.TokenRequest;
+import oidrelay.GetFromPostServlet.TokenWithEndpoint;
+
+/** Cost of minting a token for a GET, and of finding it again on a POST. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenFactoryBenchmark {
+    PerUserTokenFactory factory;
+    TokenRequest req;
+    String endpoint;
+
+    @Setup
+    public void setup() throws ServletException {
+        factory = new PerUserTokenFactory("/u/");
+        req = GetFromPostServlet.tokenRequest(
+            BenchSupport.request("alice", null));
+        endpoint = factory.mintToken(req).getEndpointToken();
+    }
+
+    @Benchmark
+    public TokenWithEndpoint mintToken() throws ServletException {
+        return factory.mintToken(req);
+    }
+
+    /** What a GET actually pays, since the endpoint goes in the reply. */
+    @Benchmark
+    public String mintTokenAndEndpoint() throws ServletException {
+        return factory.mintToken(req).getEndpointToken();
+    }
+
+    @Benchmark
+    public TokenWithEndpoint extractToken() {
+        return factory.extractToken(endpoint);
+    }
+
+    @Benchmark
+    public TokenWithEndpoint extractTokenMalformed() {
+        return factory.extractToken("/u/alice/return-for-not-a-token");
+    }
+}
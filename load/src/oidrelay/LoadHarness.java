@@ -0,0 +1,571 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * A load and soak harness. It starts TestServlet in an embedded Jetty on
+ * localhost, parks a large number of chunked GETs on it from a single
+ * selector thread, then POSTs to each minted return-for- endpoint at a steady
+ * rate and times how long each result takes to arrive on its GET.
+ *
+ * With --server standalone it runs the servlet in RelayServer instead, our
+ * own NIO server, which the client logs in to with BASIC.
+ *
+ * With --nodes above 1 it runs that many relay nodes, clustered through
+ * their PeerRelays, and POSTs each result to the node after the one holding
+ * its GET, so every delivery goes through the peer channel.
+ *
+ * It reports the connection establishment rate, POST-to-delivery latency
+ * percentiles, heap per parked connection and the thread count. Client and
+ * server share the JVM, so the heap figure includes the client's per
+ * connection state too, which is kept to a few dozen bytes.
+ *
+ * Usage: LoadHarness [--option value]...; see DEFAULTS for the options.
+ * Parking tens of thousands of connections needs a raised file descriptor
+ * limit (ulimit -n). Client sockets are spread over several loopback
+ * addresses so we don't run out of ephemeral ports.
+ */
+public class LoadHarness {
+    static final Charset ASCII = Charset.forName("US-ASCII");
+    static final String[][] DEFAULTS = {
+        { "connections", "1000" },   // GETs to park
+        { "users", "10" },           // distinct remote users
+        { "post-rate", "1000" },     // POSTs per second
+        { "post-threads", "8" },
+        { "connect-window", "512" }, // connections opening at once
+        { "keepalive-ms", "" },      // servlet default if empty
+        { "execution", "platform" }, // or "virtual", for Job runs
+        { "server", "jetty" },       // or "standalone", for RelayServer
+        { "max-parked", "" },        // admission limits; servlet defaults
+        { "max-per-user", "" },      // if empty, 0 for none
+        { "nodes", "1" },            // relay nodes; POSTs go to the next one
+        { "soak-s", "0" },           // hold the GETs this long before POSTing
+        { "timeout-s", "120" },      // per phase
+    };
+
+    final Map<String,String> opts = new HashMap<String,String>();
+    int opt(String name) { return Integer.parseInt(opts.get(name)); }
+
+    /** Our servlet, with the tunables from the command line. */
+    public static class HarnessServlet extends TestServlet {
+        private static final long serialVersionUID = 1L;
+        HarnessServlet(Map<String,String> o, int node, String peers) {
+            if (peers != null) {
+                nodeId = node;
+                peerAddresses = peers;
+            }
+            String v = o.get("keepalive-ms");
+            if (!v.isEmpty()) keepaliveInterval = Integer.parseInt(v);
+            v = o.get("max-parked");
+            if (!v.isEmpty()) maxParkedGets = Integer.parseInt(v);
+            v = o.get("max-per-user");
+            if (!v.isEmpty()) maxParkedGetsPerUser = Integer.parseInt(v);
+        }
+    }
+
+    /** Stands in for container authentication: trusts X-Load-User. */
+    static class UserFilter implements Filter {
+        public void init(FilterConfig c) { }
+        public void destroy() { }
+        public void doFilter(ServletRequest req, ServletResponse resp,
+                             FilterChain chain)
+                throws IOException, ServletException
+        {
+            final String user = ((HttpServletRequest)req).getHeader("X-Load-User");
+            chain.doFilter(new HttpServletRequestWrapper((HttpServletRequest)req) {
+                public String getRemoteUser() { return user; }
+            }, resp);
+        }
+    }
+
+    // One parked GET. The client keeps very little per connection.
+    static final class Conn {
+        static final int HEADERS = 0, SIZE = 1, DATA = 2, DATA_END = 3, DONE = 4;
+        final int id;
+        SocketChannel ch;
+        ByteBuffer request;
+        int state = HEADERS;
+        int matched = 0;          // of the CRLFCRLF ending the headers
+        long chunkLeft = 0;
+        StringBuilder text = new StringBuilder(); // headers, then body until
+                                                  // we have the endpoint
+        String endpoint = null;
+        boolean failed = false;
+        volatile long postedAt = 0;
+        Conn(int id_) { id = id_; }
+    }
+
+    Server[] servers;
+    RelayServer[] relays;
+    int[] ports;
+    Conn[] conns;
+    long[] latency;
+    final AtomicInteger posted = new AtomicInteger(),
+                        postsOk = new AtomicInteger(),
+                        postsGone = new AtomicInteger(),
+                        postsFailed = new AtomicInteger();
+    volatile int opened = 0, established = 0, delivered = 0, failures = 0;
+    volatile long lastEstablished = 0;
+    volatile boolean stopping = false;
+    volatile String clientError = null;
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness h = new LoadHarness();
+        for (String[] d : DEFAULTS) h.opts.put(d[0], d[1]);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String k = args[i].replaceFirst("^--", "");
+            if (!h.opts.containsKey(k)) {
+                System.err.println("Unknown option "+args[i]);
+                System.exit(2);
+            }
+            h.opts.put(k, args[i + 1]);
+        }
+        h.run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        int n = opt("connections");
+        System.setProperty("oidrelay.executionMode", opts.get("execution"));
+        startServers(opt("nodes"));
+        conns = new Conn[n];
+        latency = new long[n];
+
+        long heap0 = usedHeap();
+        int threads0 = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("%d server(s) on 127.0.0.1:%s (%s Job threads); "+
+                          "heap %d MB, %d threads%n", ports.length,
+                          Arrays.toString(ports), opts.get("execution"),
+                          heap0 >> 20, threads0);
+
+        Thread client = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    clientLoop();
+                } catch (IOException e) {
+                    clientError = e.toString();
+                }
+            }
+        }, "load-client");
+        client.start();
+
+        long t0 = System.nanoTime();
+        waitFor("establish", new Check() {
+            public boolean done() { return established + failures >= conns.length; }
+        });
+        double secs = (lastEstablished - t0)/1e9;
+        System.out.printf("Established %d of %d GETs in %.2fs: %.0f/s (%d failed)%n",
+                          established, n, secs, established/secs, failures);
+
+        long heap1 = usedHeap();
+        int threads1 = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("Parked: heap %d MB, %d bytes/connection, %d threads%n",
+                          heap1 >> 20,
+                          established == 0 ? 0 : (heap1 - heap0)/established,
+                          threads1);
+
+        soak(opt("soak-s"));
+        postAll();
+        waitFor("deliver", new Check() {
+            public boolean done() {
+                return delivered + failures + postsGone.get() +
+                       postsFailed.get() >= established;
+            }
+        });
+        report();
+
+        stopping = true;
+        client.join();
+        for (Server server : servers)
+            if (server != null) server.stop();
+        for (RelayServer relay : relays)
+            if (relay != null) relay.stop();
+    }
+
+    void startServers(int nodes) throws Exception {
+        servers = new Server[nodes];
+        relays = new RelayServer[nodes];
+        ports = new int[nodes];
+        String peers = null;
+        if (nodes > 1) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < nodes; ++i) {
+                ServerSocket s = new ServerSocket(0);
+                sb.append(i == 0 ? "" : ",").append(i).append("=127.0.0.1:")
+                  .append(s.getLocalPort());
+                s.close();
+            }
+            peers = sb.toString();
+        }
+        for (int i = 0; i < nodes; ++i) startServer(i, peers);
+    }
+
+    void startServer(int node, String peers) throws Exception {
+        if ("standalone".equals(opts.get("server"))) {
+            File users = File.createTempFile("load-users", ".txt");
+            users.deleteOnExit();
+            PrintWriter w = new PrintWriter(users, "UTF-8");
+            for (int i = 0; i < opt("users"); ++i) w.println("user"+i+":load");
+            w.close();
+            Map<String,String> o = new HashMap<String,String>();
+            o.put("port", "0");
+            o.put("bind", "127.0.0.1");
+            o.put("users", users.getPath());
+            RelayServer relay = new RelayServer(
+                new HarnessServlet(opts, node, peers), o);
+            relay.start();
+            relays[node] = relay;
+            ports[node] = relay.getPort();
+            return;
+        } else if (!"jetty".equals(opts.get("server"))) {
+            throw new IllegalArgumentException("Bad server "+opts.get("server"));
+        }
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setAcceptQueueSize(4096);
+        connector.setIdleTimeout(TimeUnit.MINUTES.toMillis(30));
+        server.addConnector(connector);
+
+        ServletContextHandler ctx = new ServletContextHandler();
+        ctx.setContextPath("/");
+        ServletHolder servlet = new ServletHolder(new HarnessServlet(opts, node, peers));
+        servlet.setAsyncSupported(true);
+        ctx.addServlet(servlet, "/api");
+        ctx.addServlet(servlet, "/u/*");
+        FilterHolder auth = new FilterHolder(new UserFilter());
+        auth.setAsyncSupported(true);
+        ctx.addFilter(auth, "/*", EnumSet.of(DispatcherType.REQUEST));
+        server.setHandler(ctx);
+        server.start();
+        servers[node] = server;
+        ports[node] = connector.getLocalPort();
+    }
+
+    interface Check { boolean done(); }
+
+    void waitFor(String phase, Check check) throws InterruptedException {
+        long deadline = System.nanoTime() +
+                        TimeUnit.SECONDS.toNanos(opt("timeout-s"));
+        while (!check.done()) {
+            if (clientError != null)
+                throw new IllegalStateException("Client failed: "+clientError);
+            if (System.nanoTime() > deadline) {
+                System.out.println("Timed out waiting to "+phase);
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    void soak(int seconds) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(10000,
+                Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            System.out.printf("Soak: %d parked, %d failed, heap %d MB, %d threads%n",
+                              established - delivered - failures, failures,
+                              usedHeap() >> 20,
+                              ManagementFactory.getThreadMXBean().getThreadCount());
+        }
+    }
+
+    void postAll() throws InterruptedException {
+        ExecutorService posters = Executors.newFixedThreadPool(opt("post-threads"));
+        double interval = 1e9/opt("post-rate");
+        long start = System.nanoTime();
+        int i = 0;
+        for (final Conn c : conns) {
+            if (c == null || c.endpoint == null || c.failed) continue;
+            long due = start + (long)(i++*interval);
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            posters.execute(new Runnable() {
+                public void run() { post(c); }
+            });
+        }
+        posters.shutdown();
+        posters.awaitTermination(opt("timeout-s"), TimeUnit.SECONDS);
+    }
+
+    void post(Conn c) {
+        try {
+            URL u = new URL(c.endpoint);
+            u = new URL(u.getProtocol(), u.getHost(),
+                        ports[(c.id + 1) % ports.length], u.getFile());
+            HttpURLConnection p = (HttpURLConnection)u.openConnection();
+            p.setRequestMethod("POST");
+            p.setDoOutput(true);
+            c.postedAt = System.nanoTime();
+            posted.incrementAndGet();
+            OutputStream out = p.getOutputStream();
+            out.write("openid.mode=id_res".getBytes(ASCII));
+            out.close();
+            int code = p.getResponseCode();
+            InputStream in = code < 400 ? p.getInputStream() : p.getErrorStream();
+            if (in != null) {
+                byte[] skip = new byte[4096];
+                while (in.read(skip) >= 0) { }
+                in.close();
+            }
+            if (code == 200) postsOk.incrementAndGet();
+            else if (code == 410) postsGone.incrementAndGet();
+            else postsFailed.incrementAndGet();
+        } catch (IOException e) {
+            postsFailed.incrementAndGet();
+        }
+    }
+
+    void report() {
+        long[] l = new long[delivered];
+        int k = 0;
+        for (int i = 0; i < conns.length && k < l.length; ++i)
+            if (latency[i] > 0) l[k++] = latency[i];
+        l = Arrays.copyOf(l, k);
+        Arrays.sort(l);
+        System.out.printf("POSTs: %d sent, %d ok, %d gone, %d failed%n",
+                          posted.get(), postsOk.get(), postsGone.get(),
+                          postsFailed.get());
+        System.out.printf("Delivered %d; %d GETs failed%n", delivered, failures);
+        if (l.length == 0) return;
+        System.out.printf("POST-to-delivery ms: p50 %.2f p90 %.2f p99 %.2f " +
+                          "p99.9 %.2f max %.2f%n",
+                          pct(l, 0.5), pct(l, 0.9), pct(l, 0.99), pct(l, 0.999),
+                          l[l.length - 1]/1e6);
+    }
+
+    static double pct(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int)(p*sorted.length))]/1e6;
+    }
+
+    static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // The client side: one selector thread for every GET.
+
+    void clientLoop() throws IOException {
+        Selector selector = Selector.open();
+        ByteBuffer buf = ByteBuffer.allocateDirect(64*1024);
+        int window = opt("connect-window"), users = opt("users");
+        int addrs = 1 + conns.length/20000;
+        int next = 0;
+        while (!stopping) {
+            while (next < conns.length &&
+                   next - established - failures < window) {
+                Conn c = conns[next] = new Conn(next);
+                ++next;
+                try {
+                    open(selector, c, addrs, users);
+                    opened = next;
+                } catch (IOException e) {
+                    if (clientError == null && failures == 0)
+                        System.out.println("Connect failed: "+e);
+                    fail(c);
+                }
+            }
+            selector.select(10);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Conn c = (Conn)key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        c.ch.finishConnect();
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    } else if (key.isWritable()) {
+                        c.ch.write(c.request);
+                        if (!c.request.hasRemaining()) {
+                            c.request = null;
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    } else if (key.isReadable()) {
+                        buf.clear();
+                        int r = c.ch.read(buf);
+                        if (r < 0) throw new IOException("closed");
+                        buf.flip();
+                        consume(c, buf);
+                        if (c.state == Conn.DONE) {
+                            key.cancel();
+                            c.ch.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    c.ch.close();
+                    if (c.state != Conn.DONE) fail(c);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) key.channel().close();
+        selector.close();
+    }
+
+    void open(Selector selector, Conn c, int addrs, int users) throws IOException {
+        int port = ports[c.id % ports.length];
+        String req = "GET /api?id=load"+c.id+" HTTP/1.1\r\n"+
+                     "Host: 127.0.0.1:"+port+"\r\n"+
+                     "X-Load-User: user"+(c.id % users)+"\r\n"+
+                     "Authorization: Basic "+Base64.getEncoder().encodeToString(
+                         ("user"+(c.id % users)+":load").getBytes(ASCII))+
+                     "\r\n\r\n";
+        c.request = ByteBuffer.wrap(req.getBytes(ASCII));
+        c.ch = SocketChannel.open();
+        c.ch.configureBlocking(false);
+        c.ch.bind(new InetSocketAddress("127.0.0."+(1 + c.id % addrs), 0));
+        c.ch.connect(new InetSocketAddress("127.0.0.1", port));
+        c.ch.register(selector, SelectionKey.OP_CONNECT, c);
+    }
+
+    void fail(Conn c) {
+        if (c.failed) return;
+        c.failed = true;
+        c.text = null;
+        ++failures;
+    }
+
+    /** Runs the bytes through a minimal HTTP/1.1 chunked response parser. */
+    void consume(Conn c, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining() && c.state != Conn.DONE) {
+            switch (c.state) {
+            case Conn.HEADERS: {
+                byte b = buf.get();
+                c.text.append((char)b);
+                c.matched = (b == (c.matched % 2 == 0 ? '\r' : '\n')) ?
+                            c.matched + 1 : (b == '\r' ? 1 : 0);
+                if (c.matched == 4) {
+                    String h = c.text.toString();
+                    if (!h.startsWith("HTTP/1.1 200") ||
+                        !h.toLowerCase().contains("transfer-encoding: chunked"))
+                        throw new IOException("Unexpected response: "+
+                                              h.substring(0, h.indexOf('\r')));
+                    c.text.setLength(0);
+                    c.state = Conn.SIZE;
+                    c.chunkLeft = 0;
+                }
+                break;
+            }
+            case Conn.SIZE: {
+                byte b = buf.get();
+                int d = Character.digit(b, 16);
+                if (d >= 0) {
+                    c.chunkLeft = c.chunkLeft*16 + d;
+                } else if (b == '\n') {
+                    if (c.chunkLeft == 0) {
+                        c.state = Conn.DONE;
+                        delivered(c);
+                    } else {
+                        c.state = Conn.DATA;
+                    }
+                }
+                break;
+            }
+            case Conn.DATA: {
+                int len = (int)Math.min(buf.remaining(), c.chunkLeft);
+                if (c.endpoint == null) {
+                    for (int i = 0; i < len; ++i) c.text.append((char)buf.get());
+                    findEndpoint(c);
+                } else {
+                    buf.position(buf.position() + len);
+                }
+                c.chunkLeft -= len;
+                if (c.chunkLeft == 0) c.state = Conn.DATA_END;
+                break;
+            }
+            case Conn.DATA_END: {
+                if (buf.get() == '\n') {
+                    c.state = Conn.SIZE;
+                    c.chunkLeft = 0;
+                }
+                break;
+            }
+            }
+        }
+    }
+
+    void findEndpoint(Conn c) {
+        int start = c.text.indexOf("POST to ");
+        if (start < 0) return;
+        int end = c.text.indexOf("<", start);
+        if (end < 0) return;
+        c.endpoint = c.text.substring(start + "POST to ".length(), end);
+        c.text = null;
+        ++established;
+        lastEstablished = System.nanoTime();
+    }
+
+    void delivered(Conn c) {
+        long posted = c.postedAt;
+        if (posted == 0 || c.endpoint == null) {
+            // finished without being asked: a timeout or a shutdown
+            fail(c);
+            return;
+        }
+        latency[c.id] = Math.max(1, System.nanoTime() - posted);
+        ++delivered;
+    }
+}
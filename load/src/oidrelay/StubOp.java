@@ -0,0 +1,317 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * A stub OpenID 2.0 OP, and a check of OpenIdVerifier against it. The OP
+ * serves an HTML discovery page for every identifier under /id/, answers
+ * associate requests (DH-SHA256, HMAC-SHA256) and check_authentication
+ * requests for the "private" handle, and counts each kind of request so the
+ * check can see which round trips the verifier's caches saved.
+ *
+ * main() starts it in an embedded Jetty on localhost and checks that:
+ *   - an assertion signed with an association is accepted, and a second one
+ *     costs no round trips;
+ *   - one whose claimed_id was changed after signing is refused;
+ *   - one which doesn't sign claimed_id is refused, though its signature is
+ *     good;
+ *   - one signed with a private handle is checked with the OP directly, and
+ *     refused if it was tampered with;
+ *   - a forged one naming our handle in openid.invalidate_handle doesn't
+ *     make the verifier drop its association;
+ *   - many threads verifying at once with a cold cache cost the OP one
+ *     discovery and one association between them.
+ * It exits 1 if any of them fails.
+ */
+public class StubOp extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    static final String SIGNED =
+        "op_endpoint,claimed_id,identity,return_to,response_nonce,assoc_handle";
+    static final String PRIVATE = "private";
+
+    final protected SecureRandom random = new SecureRandom();
+    final protected Map<String,byte[]> keys =
+        new ConcurrentHashMap<String,byte[]>();
+    final AtomicInteger discoveries = new AtomicInteger();
+    final AtomicInteger associations = new AtomicInteger();
+    final AtomicInteger checks = new AtomicInteger();
+    protected volatile String base = null;
+    protected volatile int latency = 0;  // ms per discovery or association
+
+    /** The MAC key for a handle, made up on first use, so an assertion can
+     *  be signed with an association the verifier hasn't asked for yet. */
+    byte[] key(String handle) {
+        byte[] k = keys.get(handle);
+        if (k == null) {
+            k = new byte[32];
+            random.nextBytes(k);
+            byte[] was = keys.putIfAbsent(handle, k);
+            if (was != null) k = was;
+        }
+        return k;
+    }
+
+    String endpoint() { return base+"/op"; }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException
+    {
+        discoveries.incrementAndGet();
+        pause();
+        resp.setContentType("text/html");
+        resp.getWriter().print("<html><head><link rel=\"openid2.provider\" "+
+                               "href=\""+endpoint()+"\"></head></html>");
+    }
+
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException
+    {
+        String mode = req.getParameter("openid.mode");
+        resp.setContentType("text/plain");
+        PrintWriter w = resp.getWriter();
+        w.print("ns:"+OpenIdVerifier.NS+"\n");
+        if ("associate".equals(mode)) {
+            String handle = "h"+associations.incrementAndGet();
+            pause();
+            byte[] key = key(handle).clone();
+            BigInteger y = new BigInteger(256, random).add(BigInteger.ONE);
+            BigInteger theirs = new BigInteger(1, Base64.getDecoder().decode(
+                req.getParameter("openid.dh_consumer_public")));
+            byte[] shared = sha256(theirs.modPow(y, OpenIdVerifier.DH_P)
+                                         .toByteArray());
+            for (int i = 0; i < key.length; ++i) key[i] ^= shared[i];
+            w.print("assoc_handle:"+handle+"\n"+
+                    "session_type:DH-SHA256\n"+
+                    "assoc_type:HMAC-SHA256\n"+
+                    "expires_in:3600\n"+
+                    "dh_server_public:"+b64(OpenIdVerifier.DH_G.modPow(
+                        y, OpenIdVerifier.DH_P).toByteArray())+"\n"+
+                    "enc_mac_key:"+b64(key)+"\n");
+        } else if ("check_authentication".equals(mode)) {
+            checks.incrementAndGet();
+            Map<String,String> p = new LinkedHashMap<String,String>();
+            for (Map.Entry<String,String[]> e : req.getParameterMap().entrySet())
+                p.put(e.getKey(), e.getValue()[0]);
+            String handle = p.get("openid.assoc_handle");
+            boolean valid = PRIVATE.equals(handle) && p.get("openid.sig") != null &&
+                p.get("openid.sig").equals(sign(p, p.get("openid.signed"),
+                                                key(handle)));
+            w.print("is_valid:"+valid+"\n");
+            // As a real OP would, for an association it never made
+            String dropped = p.get("openid.invalidate_handle");
+            if (dropped != null && !keys.containsKey(dropped))
+                w.print("invalidate_handle:"+dropped+"\n");
+        } else {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            w.print("mode:error\nerror:Unknown mode\n");
+        }
+    }
+
+    /** A positive assertion for /id/name, signing the given fields. */
+    Map<String,String> assertion(String name, String handle, String signed) {
+        Map<String,String> p = new LinkedHashMap<String,String>();
+        p.put("openid.ns", OpenIdVerifier.NS);
+        p.put("openid.mode", "id_res");
+        p.put("openid.op_endpoint", endpoint());
+        p.put("openid.claimed_id", base+"/id/"+name);
+        p.put("openid.identity", base+"/id/"+name);
+        p.put("openid.return_to", "http://rp.example/return");
+        p.put("openid.response_nonce", "2013-01-01T00:00:00Z"+random.nextInt());
+        p.put("openid.assoc_handle", handle);
+        p.put("openid.signed", signed);
+        p.put("openid.sig", sign(p, signed, key(handle)));
+        return p;
+    }
+
+    protected void pause() {
+        try {
+            if (latency > 0) Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static String sign(Map<String,String> p, String signed, byte[] key) {
+        if (signed == null || key == null) return null;
+        StringBuilder kv = new StringBuilder();
+        for (String f : signed.split(","))
+            kv.append(f).append(':').append(p.get("openid."+f)).append('\n');
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return b64(mac.doFinal(kv.toString().getBytes(OpenIdVerifier.UTF8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] sha256(byte[] b) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(b);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String b64(byte[] b) { return Base64.getEncoder().encodeToString(b); }
+
+    public String toString() {
+        return "OP: "+discoveries+" discoveries, "+associations+
+               " associations, "+checks+" direct checks";
+    }
+
+    static int failures = 0;
+
+    static void expect(String what, String expected, String got) {
+        boolean ok = expected == null ? got == null : expected.equals(got);
+        if (!ok) ++failures;
+        System.out.println((ok ? "ok    " : "FAIL  ")+what+
+                           (ok ? "" : ": expected "+expected+", got "+got));
+    }
+
+    static void expect(String what, int expected, int got) {
+        expect(what, String.valueOf(expected), String.valueOf(got));
+    }
+
+    // A fresh verifier, so the OP is new to it, and a crowd of logins
+    static void coldStart(final StubOp op) throws Exception {
+        final int threads = 32;
+        final OpenIdVerifier v = new OpenIdVerifier();
+        final String handle = "h"+(op.associations.get() + 1);
+        final CountDownLatch go = new CountDownLatch(1);
+        int discoveries = op.discoveries.get();
+        int associations = op.associations.get();
+        op.latency = 100;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < threads; ++i) {
+                results.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        go.await();
+                        return v.verify(op.assertion("carol", handle, SIGNED));
+                    }
+                }));
+            }
+            go.countDown();
+            int verified = 0;
+            for (Future<String> f : results)
+                if ((op.base+"/id/carol").equals(f.get())) ++verified;
+            expect("concurrent assertions", threads, verified);
+        } finally {
+            pool.shutdown();
+            op.latency = 0;
+        }
+        expect("concurrent discoveries", 1,
+               op.discoveries.get() - discoveries);
+        expect("concurrent associations", 1,
+               op.associations.get() - associations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        StubOp op = new StubOp();
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        ServletContextHandler ctx = new ServletContextHandler();
+        ctx.setContextPath("/");
+        ctx.addServlet(new ServletHolder(op), "/*");
+        server.setHandler(ctx);
+        server.start();
+        op.base = "http://127.0.0.1:"+connector.getLocalPort();
+
+        try {
+            OpenIdVerifier v = new OpenIdVerifier();
+            String alice = op.base+"/id/alice";
+            // The verifier associates on its first sight of the OP, so the
+            // handle it gets is the first one the OP hands out
+            Map<String,String> signedIn = op.assertion("alice", "h1", SIGNED);
+            expect("associated assertion", alice, v.verify(signedIn));
+            int trips = op.discoveries.get() + op.associations.get() +
+                        op.checks.get();
+            expect("second assertion", alice,
+                   v.verify(op.assertion("alice", "h1", SIGNED)));
+            expect("round trips for the second", trips,
+                   op.discoveries.get() + op.associations.get() +
+                   op.checks.get());
+
+            Map<String,String> tampered =
+                new LinkedHashMap<String,String>(signedIn);
+            tampered.put("openid.claimed_id", op.base+"/id/mallory");
+            tampered.put("openid.identity", op.base+"/id/mallory");
+            expect("tampered claimed_id", null, v.verify(tampered));
+            expect("unsigned claimed_id", null, v.verify(op.assertion(
+                "mallory", "h1",
+                "op_endpoint,return_to,response_nonce,assoc_handle")));
+
+            int checks = op.checks.get();
+            Map<String,String> priv = op.assertion("alice", PRIVATE, SIGNED);
+            expect("private handle", alice, v.verify(priv));
+            expect("direct checks", checks + 1, op.checks.get());
+            priv.put("openid.return_to", "http://mallory.example/");
+            expect("tampered private handle", null, v.verify(priv));
+
+            int associations = op.associations.get();
+            Map<String,String> forged = op.assertion("alice", "forged", SIGNED);
+            forged.put("openid.invalidate_handle", "h1");
+            expect("forged invalidate_handle", null, v.verify(forged));
+            expect("still associated", alice,
+                   v.verify(op.assertion("alice", "h1", SIGNED)));
+            expect("associations after the forgery", associations,
+                   op.associations.get());
+
+            coldStart(op);
+            System.out.println(op);
+        } finally {
+            server.stop();
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
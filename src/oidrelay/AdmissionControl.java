@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts parked GETs, globally and per user, so that GetFromPostServlet can
+ * turn new ones away before they cost anything. Every count is an atomic
+ * integer and the per-user ones live in a ConcurrentHashMap, so admitting a
+ * GET is a map lookup and a couple of CASes, with no lock.
+ *
+ * A user's counter is dropped from the map when it goes back to zero, so
+ * the map only holds users with GETs parked. To stop that racing with a new
+ * GET for the same user, the releasing thread first retires the counter by
+ * setting it to -1; anyone who then finds the retired counter replaces it.
+ */
+class AdmissionControl {
+    static final class Slot extends AtomicInteger {
+        private static final long serialVersionUID = 1L;
+        final String user;
+        Slot(String user_) { user = user_; }
+    }
+
+    final protected AtomicInteger parked = new AtomicInteger();
+    final protected ConcurrentHashMap<String,Slot> users =
+        new ConcurrentHashMap<String,Slot>();
+    // Handed out when there is no per-user limit to count against
+    final protected Slot unlimited = new Slot(null);
+
+    public int parked() { return parked.get(); }
+
+    /**
+     * Counts one more GET parked for user, if the limits allow it. A limit of
+     * zero or less means no limit.
+     * @return the Slot to pass to release(), or null if the GET is refused
+     */
+    public Slot acquire(String user, int maxTotal, int maxPerUser) {
+        // Overshooting by the odd GET while two threads race is harmless,
+        // and cheaper than a CAS loop on the hottest counter
+        int n = parked.incrementAndGet();
+        if (maxTotal > 0 && n > maxTotal) {
+            parked.decrementAndGet();
+            return null;
+        }
+        if (user == null || maxPerUser <= 0) return unlimited;
+        while (true) {
+            Slot s = users.get(user);
+            if (s == null) {
+                Slot fresh = new Slot(user);
+                s = users.putIfAbsent(user, fresh);
+                if (s == null) s = fresh;
+            }
+            int c = s.get();
+            if (c < 0) {
+                users.remove(user, s);  // retired; put in a new one
+            } else if (c >= maxPerUser) {
+                parked.decrementAndGet();
+                return null;
+            } else if (s.compareAndSet(c, c + 1)) {
+                return s;
+            }
+        }
+    }
+
+    public void release(Slot s) {
+        parked.decrementAndGet();
+        if (s == unlimited) return;
+        if (s.decrementAndGet() == 0 && s.compareAndSet(0, -1))
+            users.remove(s.user, s);
+    }
+}
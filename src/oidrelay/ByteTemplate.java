@@ -0,0 +1,279 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * A small template for RequestHandler output. The template is compiled once
+ * into UTF-8 byte[] literals with slots between them, so rendering is just
+ * copying the literals and encoding the slot values straight into the output
+ * stream, with no intermediate Strings.
+ *
+ * A slot is written "{n}" for argument n (0 or 1), optionally followed by
+ * filters applied in order: "{0:html}" escapes for HTML text or a quoted
+ * attribute, and "{0:html:uri}" additionally percent-encodes the result the
+ * way URLEncoder does (but with spaces as %20). "{0:data}" keeps a value
+ * inside a text/event-stream "data:" field: each line break starts a new
+ * "data: " line, and carriage returns, which the client would also take as
+ * line breaks, are dropped. Literal braces can't appear in a template.
+ */
+class ByteTemplate {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int HTML = 1, URI = 2, DATA = 3;
+
+    final protected byte[][] literals;
+    final protected int[] slotArg;
+    final protected int[] slotFilters;
+
+    protected ByteTemplate(byte[][] l, int[] a, int[] f)
+    { literals = l; slotArg = a; slotFilters = f; }
+
+    public static ByteTemplate compile(String src) {
+        ArrayList<byte[]> lits = new ArrayList<byte[]>();
+        ArrayList<int[]> slots = new ArrayList<int[]>();
+        int pos = 0;
+        while (true) {
+            int open = src.indexOf('{', pos);
+            if (open < 0) break;
+            int close = src.indexOf('}', open);
+            if (close < 0)
+                throw new IllegalArgumentException("Unterminated slot: "+src);
+            lits.add(src.substring(pos, open).getBytes(UTF8));
+            String[] parts = src.substring(open + 1, close).split(":");
+            int arg = Integer.parseInt(parts[0]);
+            if (arg < 0 || arg > 1)
+                throw new IllegalArgumentException("Bad slot: "+parts[0]);
+            int filters = 0, shift = 0;
+            for (int i = 1; i < parts.length; ++i, shift += 2) {
+                if ("html".equals(parts[i])) filters |= HTML << shift;
+                else if ("uri".equals(parts[i])) filters |= URI << shift;
+                else if ("data".equals(parts[i])) filters |= DATA << shift;
+                else throw new IllegalArgumentException("Bad filter: "+parts[i]);
+            }
+            slots.add(new int[] { arg, filters });
+            pos = close + 1;
+        }
+        lits.add(src.substring(pos).getBytes(UTF8));
+        int[] a = new int[slots.size()], f = new int[slots.size()];
+        for (int i = 0; i < a.length; ++i) {
+            a[i] = slots.get(i)[0];
+            f[i] = slots.get(i)[1];
+        }
+        return new ByteTemplate(lits.toArray(new byte[lits.size()][]), a, f);
+    }
+
+    public void render(OutputStream out) throws IOException
+    { render(out, null, (CharSequence)null); }
+    public void render(OutputStream out, CharSequence a0) throws IOException
+    { render(out, a0, (CharSequence)null); }
+
+    public void render(OutputStream out, CharSequence a0, CharSequence a1)
+            throws IOException
+    {
+        for (int i = 0; i < slotArg.length; ++i) {
+            out.write(literals[i]);
+            CharSequence v = slotArg[i] == 0 ? a0 : a1;
+            if (v != null) writeFiltered(out, v, slotFilters[i]);
+        }
+        out.write(literals[slotArg.length]);
+    }
+
+    /**
+     * Renders a template whose slot(s) all take the one Payload. Its bytes
+     * are filtered as bytes: every character the filters care about is
+     * ASCII, so UTF-8 (or any ASCII-compatible encoding) passes through
+     * intact without being decoded.
+     */
+    public void render(OutputStream out, Payload p) throws IOException {
+        for (int i = 0; i < slotArg.length; ++i) {
+            out.write(literals[i]);
+            writeFiltered(out, p, slotFilters[i]);
+        }
+        out.write(literals[slotArg.length]);
+    }
+
+    /** Renders a template with a string as argument 0 and a Payload as 1. */
+    public void render(OutputStream out, CharSequence a0, Payload a1)
+            throws IOException
+    {
+        for (int i = 0; i < slotArg.length; ++i) {
+            out.write(literals[i]);
+            if (slotArg[i] == 1) writeFiltered(out, a1, slotFilters[i]);
+            else if (a0 != null) writeFiltered(out, a0, slotFilters[i]);
+        }
+        out.write(literals[slotArg.length]);
+    }
+
+    /** Renders a template whose slot(s) all take the one int argument. */
+    public void render(OutputStream out, int n) throws IOException {
+        for (int i = 0; i < slotArg.length; ++i) {
+            out.write(literals[i]);
+            writeInt(out, n);
+        }
+        out.write(literals[slotArg.length]);
+    }
+
+    public static void writeInt(OutputStream out, int n) throws IOException {
+        if (n < 0) {
+            if (n == Integer.MIN_VALUE) {
+                out.write("-2147483648".getBytes(UTF8));
+                return;
+            }
+            out.write('-');
+            n = -n;
+        }
+        int div = 1;
+        while (n / div >= 10) div *= 10;
+        for (; div > 0; div /= 10) out.write('0' + (n / div) % 10);
+    }
+
+    /** Percent-encodes s once, for building templates. */
+    public static String uriEncode(String s) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try {
+            writeFiltered(b, s, URI);
+        } catch (IOException e) { throw new AssertionError(e); }
+        return new String(b.toByteArray(), UTF8);
+    }
+
+    static final byte[] HEX = "0123456789ABCDEF".getBytes(UTF8);
+    static final byte[] DATA_BREAK = "\ndata: ".getBytes(UTF8);
+    static final byte[][] ENTITIES = new byte[128][];
+    static {
+        ENTITIES['&'] = "&amp;".getBytes(UTF8);
+        ENTITIES['<'] = "&lt;".getBytes(UTF8);
+        ENTITIES['>'] = "&gt;".getBytes(UTF8);
+        ENTITIES['"'] = "&quot;".getBytes(UTF8);
+        ENTITIES['\''] = "&apos;".getBytes(UTF8);
+    }
+
+    protected static void writeFiltered(OutputStream out, CharSequence s,
+                                        int filters) throws IOException
+    {
+        int len = s.length();
+        for (int i = 0; i < len; ++i) {
+            int c = s.charAt(i);
+            if (Character.isHighSurrogate((char)c) && i + 1 < len &&
+                Character.isLowSurrogate(s.charAt(i + 1)))
+                c = Character.toCodePoint((char)c, s.charAt(++i));
+            writeChar(out, c, filters);
+        }
+    }
+
+    protected static void writeFiltered(OutputStream out, Payload p,
+                                        int filters) throws IOException
+    {
+        for (int c = 0; c < p.chunkCount(); ++c) {
+            byte[] b = p.chunk(c);
+            int len = p.chunkLength(c);
+            if (filters == 0) {
+                out.write(b, 0, len);
+                continue;
+            }
+            for (int k = 0; k < len; ++k) writeFilteredByte(out, b[k] & 0xff, filters);
+        }
+    }
+
+    protected static void writeChar(OutputStream out, int c, int filters)
+            throws IOException
+    {
+        int f = filters & 3;
+        if (f == HTML) {
+            if (c < 128 && ENTITIES[c] != null)
+                for (byte b : ENTITIES[c]) writeChar(out, b, filters >>> 2);
+            else
+                writeChar(out, c, filters >>> 2);
+        } else if (f == URI) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                (c >= '0' && c <= '9') || c == '.' || c == '-' ||
+                c == '*' || c == '_')
+                writeChar(out, c, filters >>> 2);
+            else
+                writeUtf8(out, c, filters);
+        } else if (f == DATA) {
+            if (c == '\n')
+                for (byte b : DATA_BREAK) writeChar(out, b, filters >>> 2);
+            else if (c != '\r')
+                writeChar(out, c, filters >>> 2);
+        } else if (c < 128) {
+            out.write(c);
+        } else {
+            writeUtf8(out, c, 0);
+        }
+    }
+
+    // As writeChar, for one byte of already-encoded text
+    protected static void writeFilteredByte(OutputStream out, int b,
+                                            int filters) throws IOException
+    {
+        int f = filters & 3;
+        if (f == HTML && b < 128 && ENTITIES[b] != null) {
+            for (byte e : ENTITIES[b]) writeFilteredByte(out, e, filters >>> 2);
+        } else if (f == URI && !((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') ||
+                                 (b >= '0' && b <= '9') || b == '.' ||
+                                 b == '-' || b == '*' || b == '_')) {
+            writeByte(out, b, URI);
+        } else if (f == DATA && (b == '\n' || b == '\r')) {
+            if (b == '\n')
+                for (byte e : DATA_BREAK) writeFilteredByte(out, e, filters >>> 2);
+        } else if (f == 0) {
+            out.write(b);
+        } else {
+            writeFilteredByte(out, b, filters >>> 2);
+        }
+    }
+
+    // Writes c as UTF-8, percent-encoding each byte if filters asks for it
+    protected static void writeUtf8(OutputStream out, int c, int filters)
+            throws IOException
+    {
+        if (c < 0x80) {
+            writeByte(out, c, filters);
+        } else if (c < 0x800) {
+            writeByte(out, 0xc0 | (c >> 6), filters);
+            writeByte(out, 0x80 | (c & 0x3f), filters);
+        } else if (c < 0x10000) {
+            writeByte(out, 0xe0 | (c >> 12), filters);
+            writeByte(out, 0x80 | ((c >> 6) & 0x3f), filters);
+            writeByte(out, 0x80 | (c & 0x3f), filters);
+        } else {
+            writeByte(out, 0xf0 | (c >> 18), filters);
+            writeByte(out, 0x80 | ((c >> 12) & 0x3f), filters);
+            writeByte(out, 0x80 | ((c >> 6) & 0x3f), filters);
+            writeByte(out, 0x80 | (c & 0x3f), filters);
+        }
+    }
+
+    protected static void writeByte(OutputStream out, int b, int filters)
+            throws IOException
+    {
+        if ((filters & 3) != URI) {
+            out.write(b);
+            return;
+        }
+        // Each %XX is plain ASCII, so any later filters leave it alone
+        out.write('%');
+        out.write(HEX[(b >> 4) & 0xf]);
+        out.write(HEX[b & 0xf]);
+    }
+}
@@ -0,0 +1,337 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A log of what happens to GETs: tokens minted, results delivered, timeouts,
+ * I/O failures and shutdowns, one line each. Recording an event never
+ * blocks and takes no lock. The event is copied into a slot of a fixed ring,
+ * and a background thread formats whatever has built up and appends it to
+ * the file, moving it aside to path.1 (and path.1 to path.2, and so on) when
+ * it grows past maxBytes. If the writer falls so far behind that the ring
+ * fills, events are dropped and counted rather than waited for. So are
+ * events which can't be written because the file has failed; the writer
+ * opens it again at most once a second, and notes how many were lost.
+ *
+ * The ring is Vyukov's bounded queue. Each slot has a sequence number saying
+ * whose turn it is, so a producer claims a slot with one CAS on the tail
+ * and publishes it with an ordered store, and the single reader needs no
+ * CAS at all.
+ *
+ * Until start() is called, recording does nothing; except that errors, which
+ * nobody expects, still go to stderr.
+ */
+class EventLog {
+    static final int MINT = 0, DELIVER = 1, TIMEOUT = 2, IO_FAILURE = 3,
+                     STALLED = 4, SHUTDOWN = 5, ERROR = 6, LOG = 7;
+    static final String[] NAMES = { "mint", "deliver", "timeout",
+                                    "io-failure", "stalled", "shutdown",
+                                    "error", "log" };
+    // How long the writer sleeps when there's nothing to write
+    static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // How long the writer waits to open the file again after it failed
+    static final long REOPEN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final protected LongAdder dropped;
+    // The ring, allocated by start(); the volatile open publishes it
+    protected int mask;
+    protected AtomicLongArray sequence;
+    protected int[] types;
+    protected long[] times;        // System.currentTimeMillis()
+    protected long[] values;       // what it means depends on the type
+    protected Object[] subjects;   // a token, usually
+    protected Throwable[] errors;
+    final protected AtomicLong tail = new AtomicLong();
+    protected volatile boolean open = false;
+    // Only touched by the writer
+    protected long head = 0;
+    protected long reportedDrops = 0;
+    protected String path;
+    protected long maxBytes;
+    protected int files;
+    protected FileOutputStream file;
+    protected Writer out;          // null while the file can't be written
+    protected int unflushed = 0;   // events in out's buffer
+    protected long reopenAt;       // System.nanoTime()
+    protected boolean failing = false;  // until a flush goes through again
+    protected Thread writer;
+    final protected SimpleDateFormat dateFormat =
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    /** @param dropped_ counts events lost to a full ring or a failed file */
+    EventLog(LongAdder dropped_) {
+        dropped = dropped_;
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Opens (appending to) the file at path_, and starts the writer.
+     * @param size events the ring holds; rounded up to a power of two
+     * @param maxBytes_ size at which the file is moved aside
+     * @param files_ how many old files to keep
+     */
+    public void start(String path_, int size, long maxBytes_, int files_)
+        throws IOException
+    {
+        int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        mask = n - 1;
+        sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; ++i) sequence.set(i, i);
+        types = new int[n];
+        times = new long[n];
+        values = new long[n];
+        subjects = new Object[n];
+        errors = new Throwable[n];
+        path = path_;
+        maxBytes = maxBytes_;
+        files = files_;
+        openFile();
+        writer = new Thread("oidrelay-events") {
+            public void run() { writeLoop(); }
+        };
+        writer.setDaemon(true);
+        open = true;
+        writer.start();
+    }
+
+    /** Stops recording, and waits for the writer to write out the rest. */
+    public void close() {
+        if (!open) return;
+        open = false;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Records an event, if there's room for it.
+     * @param subject what it happened to: a TokenWithEndpoint is written as
+     *        its endpoint, anything else as its toString()
+     * @param value the POST-to-delivery time in nanoseconds for DELIVER,
+     *        the number of GETs for SHUTDOWN; otherwise ignored
+     */
+    public void record(int type, Object subject, long value, Throwable error) {
+        if (!open) return;
+        long t = tail.get();
+        while (true) {
+            int i = (int)t & mask;
+            long s = sequence.get(i);
+            if (s == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    types[i] = type;
+                    times[i] = System.currentTimeMillis();
+                    values[i] = value;
+                    subjects[i] = subject;
+                    errors[i] = error;
+                    sequence.lazySet(i, t + 1);
+                    return;
+                }
+            } else if (s < t) {
+                // The writer hasn't got to this slot's last event yet
+                dropped.increment();
+                return;
+            }
+            t = tail.get();
+        }
+    }
+
+    public void record(int type, Object subject) {
+        record(type, subject, 0, null);
+    }
+
+    /** Records something which should never happen; to stderr, if the
+     *  log isn't open, so that it isn't lost. */
+    public void error(Object subject, Throwable e) {
+        if (open) record(ERROR, subject, 0, e);
+        else e.printStackTrace();
+    }
+
+    /** Records a message for the servlet's log, with e's stack trace if
+     *  there is one; to stderr, if the log isn't open. */
+    public void log(String message, Throwable e) {
+        if (open) {
+            record(e == null ? LOG : ERROR, message, 0, e);
+            return;
+        }
+        System.err.println(message);
+        if (e != null) e.printStackTrace();
+    }
+
+    protected void writeLoop() {
+        while (true) {
+            // Read open first, so the last pass sees everything recorded
+            // before close() (but an event racing with it may be lost)
+            boolean last = !open;
+            if (out == null && System.nanoTime() - reopenAt >= 0) {
+                try {
+                    openFile();
+                } catch (IOException e) {
+                    reopenAt = System.nanoTime() + REOPEN_NANOS;
+                }
+            }
+            try {
+                int n = drain();
+                long d = dropped.sum(), reported = reportedDrops;
+                if (d != reported && out != null) {
+                    writeDrops(d - reported);
+                    reported = d;
+                    ++n;
+                }
+                if (n > 0 && out != null) {
+                    out.flush();
+                    unflushed = 0;
+                    reportedDrops = reported;
+                    failing = false;
+                    if (file.getChannel().position() >= maxBytes) rotate();
+                }
+            } catch (IOException e) {
+                // Nowhere better to say so, once an outage; after that the
+                // drop count tells. What hadn't reached the file is lost;
+                // count it, and open the file again
+                if (!failing) e.printStackTrace();
+                failing = true;
+                dropped.add(unflushed);
+                unflushed = 0;
+                closeFile();
+            }
+            if (last) break;
+            if (sequence.get((int)head & mask) != head + 1)
+                LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+        closeFile();
+    }
+
+    // Writes out what has been published, freeing the slots; at most a
+    // ringful, so that busy producers can't put off the size check forever
+    protected int drain() throws IOException {
+        int n = 0;
+        while (n <= mask) {
+            int i = (int)head & mask;
+            if (sequence.get(i) != head + 1) break;
+            try {
+                if (out == null) {
+                    dropped.increment();  // nowhere to put it
+                } else {
+                    ++unflushed;
+                    write(types[i], times[i], values[i], subjects[i],
+                          errors[i]);
+                }
+            } finally {
+                subjects[i] = null;
+                errors[i] = null;
+                sequence.lazySet(i, head + mask + 1);
+                ++head;
+            }
+            ++n;
+        }
+        return n;
+    }
+
+    protected void write(int type, long time, long value, Object subject,
+                         Throwable error) throws IOException
+    {
+        out.write(dateFormat.format(new Date(time)));
+        out.write(' ');
+        out.write(NAMES[type]);
+        out.write(' ');
+        out.write(subject instanceof GetFromPostServlet.TokenWithEndpoint ?
+                  ((GetFromPostServlet.TokenWithEndpoint)subject)
+                      .getEndpointToken() :
+                  String.valueOf(subject).replace('\n', ' ')
+                                         .replace('\r', ' '));
+        if (type == DELIVER && value > 0)
+            out.write(" ms="+(value/1000)/1000.0);
+        else if (type == SHUTDOWN)
+            out.write(" gets="+value);
+        if (error != null) {
+            out.write(' ');
+            out.write(String.valueOf(error).replace('\n', ' ')
+                                           .replace('\r', ' '));
+        }
+        out.write('\n');
+        if (type == ERROR && error != null) {
+            PrintWriter pw = new PrintWriter(out);
+            error.printStackTrace(pw);
+            pw.flush();
+        }
+    }
+
+    protected void writeDrops(long n) throws IOException {
+        out.write(dateFormat.format(new Date()));
+        out.write(" dropped - events="+n+"\n");
+    }
+
+    protected void openFile() throws IOException {
+        file = new FileOutputStream(path, true);
+        out = new BufferedWriter(new OutputStreamWriter(file,
+                                                        ByteTemplate.UTF8));
+    }
+
+    // Closes the file without flushing out, which has either just been
+    // flushed or has failed
+    protected void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        file = null;
+        out = null;
+        reopenAt = System.nanoTime();
+    }
+
+    // Moves the file aside to path.1, after moving path.1 to path.2 and so
+    // on, and starts a new one. If that can't be opened, out is left null.
+    protected void rotate() throws IOException {
+        closeFile();
+        if (files > 0) {
+            new File(path+"."+files).delete();
+            for (int k = files - 1; k >= 1; --k)
+                new File(path+"."+k).renameTo(new File(path+"."+(k + 1)));
+            new File(path).renameTo(new File(path+".1"));
+        } else {
+            new File(path).delete();
+        }
+        openFile();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.util.Enumeration;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import oidrelay.GetFromPostServlet.RequestHandler;
+
+/**
+ * A RequestHandler for machine clients, which speaks text/event-stream
+ * (Server-Sent Events) rather than HTML. A reply is one "endpoint" event
+ * giving the URL to POST to, a two-byte comment line per keepalive, and one
+ * "result" event:
+ *
+ *   event: endpoint
+ *   data: http://relay/u/alice/return-for-...
+ *
+ *   :
+ *   :
+ *   event: result
+ *   data: OK: ...
+ *
+ * On a multiplexed GET, each token's outcome is a "tagged-result" event
+ * whose first data line is the token's endpoint, and the stream goes on:
+ *
+ *   event: tagged-result
+ *   data: http://relay/u/alice/return-for-...
+ *   data: OK: ...
+ *
+ * Only the GET side is different. The POST comes from the user's browser, so
+ * that side, and the checks on the GET's URL, are left to the handler the
+ * request would otherwise have had.
+ */
+class EventStreamFormatter implements RequestHandler {
+    public static final String MEDIA_TYPE = "text/event-stream";
+
+    final protected RequestHandler fallback;
+    final protected ByteTemplate replyHeader = ByteTemplate.compile(
+        "event: endpoint\ndata: {0:data}\n\n");
+    final protected ByteTemplate replyKeepalive = ByteTemplate.compile(":\n");
+    final protected ByteTemplate replyResult = ByteTemplate.compile(
+        "event: result\ndata: OK: {0:data}\n\n");
+    final protected ByteTemplate replyComplete = ByteTemplate.compile(
+        "event: result\ndata: {0:data}\n\n");
+    // The tag goes on the first data line, and the message after it
+    final protected ByteTemplate replyTaggedResult = ByteTemplate.compile(
+        "event: tagged-result\ndata: {0:data}\ndata: OK: {1:data}\n\n");
+    final protected ByteTemplate replyTaggedComplete = ByteTemplate.compile(
+        "event: tagged-result\ndata: {0:data}\ndata: {1:data}\n\n");
+
+    public EventStreamFormatter(RequestHandler fallback_)
+    { fallback = fallback_; }
+
+    /** @return whether the request's Accept header names text/event-stream
+     *  (exactly: a wildcard means the client would rather have the default) */
+    public static boolean isAccepted(HttpServletRequest req) {
+        Enumeration<String> headers = req.getHeaders("Accept");
+        while (headers != null && headers.hasMoreElements()) {
+            for (String range : headers.nextElement().split(",")) {
+                String[] params = range.split(";");
+                if (!MEDIA_TYPE.equalsIgnoreCase(params[0].trim())) continue;
+                boolean refused = false;
+                for (int i = 1; i < params.length; ++i) {
+                    String p = params[i].trim();
+                    if (p.startsWith("q=") && p.substring(2).matches("0(\\.0*)?"))
+                        refused = true;
+                }
+                if (!refused) return true;
+            }
+        }
+        return false;
+    }
+
+    public void formatPostResult(HttpServletResponse resp, boolean dispatched)
+            throws IOException
+    { fallback.formatPostResult(resp, dispatched); }
+
+    public void formatReplyHeader(ServletResponse resp, String endpoint)
+            throws IOException
+    {
+        resp.setContentType(MEDIA_TYPE+";charset=utf-8");
+        if (resp instanceof HttpServletResponse) {
+            HttpServletResponse r = (HttpServletResponse)resp;
+            r.setHeader("Cache-Control", "no-cache");
+            // Stop nginx and friends sitting on the events
+            r.setHeader("X-Accel-Buffering", "no");
+        }
+        replyHeader.render(resp.getOutputStream(), endpoint);
+    }
+
+    public void formatReplyKeepalive(ServletResponse resp, int n)
+            throws IOException
+    {
+        replyKeepalive.render(resp.getOutputStream());
+    }
+
+    public void formatReplyResult(ServletResponse resp, Payload body)
+            throws IOException
+    {
+        replyResult.render(resp.getOutputStream(), body);
+    }
+
+    public void formatReplyComplete(ServletResponse resp, String message)
+            throws IOException
+    {
+        replyComplete.render(resp.getOutputStream(), message);
+    }
+
+    public void formatReplyTaggedResult(ServletResponse resp, String tag,
+                                        Payload body)
+            throws IOException
+    {
+        replyTaggedResult.render(resp.getOutputStream(), tag, body);
+    }
+
+    public void formatReplyTaggedComplete(ServletResponse resp, String tag,
+                                          String message)
+            throws IOException
+    {
+        replyTaggedComplete.render(resp.getOutputStream(), tag, message);
+    }
+
+    public boolean validateReplyRequest(HttpServletRequest req,
+                                        HttpServletResponse resp)
+            throws IOException
+    {
+        if (!isAccepted(req)) {
+            resp.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            return false;
+        }
+        return fallback.validateReplyRequest(req, resp);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache whose entries expire, for the OpenID lookups which are too
+ * slow to repeat on every login but go stale eventually (see OpenIdVerifier).
+ *
+ * The keys are striped across segments, each an access-ordered LinkedHashMap
+ * under its own lock, so lookups for different keys rarely contend and each
+ * segment drops its least recently used entry when it fills. The LRU order
+ * is per segment, which is near enough.
+ *
+ * Loading happens outside the lock. The first caller to miss on a key
+ * starts a FutureTask for it and runs it; anyone else who misses on that
+ * key meanwhile waits for the same task, so an entry expiring under load
+ * costs one fetch rather than a stampede of them. A failed load isn't
+ * cached: every waiter gets the exception and the next caller tries again.
+ */
+class ExpiringCache<K,V> {
+    /** Fetches the value for a key on a miss. */
+    static abstract class Loader<K,V> {
+        abstract V load(K key) throws IOException;
+        /** How long v may be used for, in ms; the cache's ttl caps it. */
+        long lifetime(V v) { return Long.MAX_VALUE; }
+    }
+
+    static final class Entry<V> {
+        V value;                // null until the first load finishes
+        long expiry;            // System.nanoTime() deadline for value
+        FutureTask<V> loading;  // the load in flight, if any
+    }
+
+    final protected Loader<K,V> loader;
+    final protected long ttl;
+    final protected Segment[] segments;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final LongAdder loadFailures = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    protected class Segment extends LinkedHashMap<K,Entry<V>> {
+        private static final long serialVersionUID = 1L;
+        final int capacity;
+        Segment(int capacity_) {
+            super(16, 0.75f, true);
+            capacity = capacity_;
+        }
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K,Entry<V>> eldest) {
+            if (size() <= capacity) return false;
+            // A load in flight for it still finishes for its waiters, and
+            // just doesn't get stored
+            evictions.increment();
+            return true;
+        }
+    }
+
+    /**
+     * @param maxEntries roughly how many keys to keep, at least one per segment
+     * @param ttl_ the longest any value is kept, in ms
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ExpiringCache(Loader<K,V> loader_, int maxEntries, long ttl_) {
+        loader = loader_;
+        ttl = ttl_;
+        int n = Integer.highestOneBit(
+                    Math.max(1, Runtime.getRuntime().availableProcessors())*2 - 1);
+        n = Math.max(1, Math.min(n, maxEntries));
+        segments = new ExpiringCache.Segment[n];
+        for (int i = 0; i < n; ++i)
+            segments[i] = new Segment((maxEntries + n - 1) / n);
+    }
+
+    protected Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    /** @return the cached value for key, loading it if need be */
+    public V get(final K key) throws IOException {
+        final Segment seg = segmentFor(key);
+        FutureTask<V> task;
+        boolean mine = false;
+        synchronized (seg) {
+            Entry<V> e = seg.get(key);
+            if (e != null && e.value != null && e.expiry - System.nanoTime() > 0) {
+                hits.increment();
+                return e.value;
+            }
+            misses.increment();
+            if (e == null) {
+                e = new Entry<V>();
+                seg.put(key, e);
+            }
+            if (e.loading == null) {
+                e.loading = newLoad(seg, key, e);
+                mine = true;
+            }
+            task = e.loading;
+        }
+        if (mine) task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted loading "+key);
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) throw (IOException)t;
+            if (t instanceof RuntimeException) throw (RuntimeException)t;
+            if (t instanceof Error) throw (Error)t;
+            throw new IOException(t);
+        }
+    }
+
+    protected FutureTask<V> newLoad(final Segment seg, final K key,
+                                    final Entry<V> e)
+    {
+        return new FutureTask<V>(new Callable<V>() {
+            public V call() throws IOException {
+                loads.increment();
+                V v;
+                try {
+                    v = loader.load(key);
+                } catch (IOException ex) {
+                    failed(seg, key, e);
+                    throw ex;
+                } catch (RuntimeException ex) {
+                    failed(seg, key, e);
+                    throw ex;
+                }
+                long life = Math.max(0, Math.min(ttl, loader.lifetime(v)));
+                synchronized (seg) {
+                    e.value = v;
+                    e.expiry = System.nanoTime() +
+                               TimeUnit.MILLISECONDS.toNanos(life);
+                    e.loading = null;
+                }
+                return v;
+            }
+        });
+    }
+
+    protected void failed(Segment seg, K key, Entry<V> e) {
+        loadFailures.increment();
+        synchronized (seg) {
+            e.loading = null;
+            // Don't leave an empty entry holding a place in the LRU order
+            if (e.value == null && seg.get(key) == e) seg.remove(key);
+        }
+    }
+
+    /** Drops key's entry if it still holds v, so the next get() reloads. */
+    public void invalidate(K key, V v) {
+        Segment seg = segmentFor(key);
+        synchronized (seg) {
+            Entry<V> e = seg.get(key);
+            if (e != null && e.value == v && e.loading == null) seg.remove(key);
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment seg : segments)
+            synchronized (seg) { n += seg.size(); }
+        return n;
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long loads() { return loads.sum(); }
+    public long loadFailures() { return loadFailures.sum(); }
+    public long evictions() { return evictions.sum(); }
+
+    @Override
+    public String toString() {
+        return "hits="+hits()+" misses="+misses()+" loads="+loads()+
+               " failures="+loadFailures()+" evictions="+evictions()+
+               " size="+size();
+    }
+}
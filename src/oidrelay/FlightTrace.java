@@ -0,0 +1,188 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import oidrelay.GetFromPostServlet.TokenWithEndpoint;
+
+/**
+ * The stage timings as Flight Recorder events, under "oidrelay" in JMC.
+ * Start a recording on a running node (jcmd <pid> JFR.start) to see where
+ * the time between a POST and its delivery goes.
+ *
+ * The servlet only asks for events while some recording is running, which
+ * a listener keeps track of; each event can still be turned off on its own
+ * in the recording's settings. The stack traces would only ever show the
+ * servlet, so none are taken. Only loaded by RelayTrace.load(), so the rest
+ * of the relay builds and runs without jdk.jfr.
+ */
+class FlightTrace extends RelayTrace implements FlightRecorderListener {
+    protected volatile boolean recording = false;
+
+    FlightTrace() {
+        // The event classes register themselves when first loaded, which
+        // is only once something is recording; FlightRecorder.register()
+        // would start all of JFR up now, which takes the best part of a
+        // second. This calls recorderInitialized() at once if a recording
+        // was started with the JVM.
+        FlightRecorder.addListener(this);
+    }
+
+    public boolean enabled() { return recording; }
+
+    // FlightRecorderListener methods
+    public void recorderInitialized(FlightRecorder recorder) {
+        update(recorder);
+    }
+    public void recordingStateChanged(Recording r) {
+        update(FlightRecorder.getFlightRecorder());
+    }
+
+    protected void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings())
+            if (r.getState() == RecordingState.RUNNING) running = true;
+        recording = running;
+    }
+
+    @Name("oidrelay.Get")
+    @Label("Relay GET")
+    @Category("oidrelay")
+    @StackTrace(false)
+    @Description("A GET parked to wait for its POST")
+    static class GetEvent extends Event {
+        @Label("Endpoint") String endpoint;
+        @Label("Mint") @Timespan(Timespan.NANOSECONDS) long mint;
+        @Label("Start Async") @Timespan(Timespan.NANOSECONDS) long startAsync;
+        @Label("Total") @Timespan(Timespan.NANOSECONDS) long total;
+        @Label("Resumed") boolean resumed;
+    }
+
+    @Name("oidrelay.Post")
+    @Label("Relay POST")
+    @Category("oidrelay")
+    @StackTrace(false)
+    @Description("A POST read and delivered")
+    static class PostEvent extends Event {
+        @Label("Endpoint") String endpoint;
+        @Label("Read") @Timespan(Timespan.NANOSECONDS) long read;
+        @Label("Deliver") @Timespan(Timespan.NANOSECONDS) long deliver;
+        @Label("Bytes") int bytes;
+        @Label("Found") boolean found;
+    }
+
+    @Name("oidrelay.SendResult")
+    @Label("Relay Send Result")
+    @Category("oidrelay")
+    @StackTrace(false)
+    @Description("A result handed to its GET's shard")
+    static class SendResultEvent extends Event {
+        @Label("Endpoint") String endpoint;
+        @Label("Queued") @Timespan(Timespan.NANOSECONDS) long queued;
+        @Label("Handled") @Timespan(Timespan.NANOSECONDS) long handled;
+        @Label("Found") boolean found;
+    }
+
+    @Name("oidrelay.Run")
+    @Label("Relay Job Run")
+    @Category("oidrelay")
+    @StackTrace(false)
+    @Description("A parked GET's job run by a worker")
+    static class RunEvent extends Event {
+        @Label("Endpoint") String endpoint;
+        @Label("Queued") @Timespan(Timespan.NANOSECONDS) long queued;
+        @Label("Ran") @Timespan(Timespan.NANOSECONDS) long ran;
+        @Label("Flags") int flags;
+    }
+
+    @Name("oidrelay.Write")
+    @Label("Relay Write")
+    @Category("oidrelay")
+    @StackTrace(false)
+    @Description("Output handed to the container until all accepted")
+    static class WriteEvent extends Event {
+        @Label("Endpoint") String endpoint;
+        @Label("Writing") @Timespan(Timespan.NANOSECONDS) long writing;
+        @Label("Result") boolean result;
+    }
+
+    public void get(TokenWithEndpoint tok, long mint, long startAsync,
+                    long total, boolean resumed) {
+        GetEvent e = new GetEvent();
+        if (!e.isEnabled()) return;
+        e.endpoint = tok.getEndpointToken();
+        e.mint = mint;
+        e.startAsync = startAsync;
+        e.total = total;
+        e.resumed = resumed;
+        e.commit();
+    }
+
+    public void post(String endpoint, long read, long deliver, int bytes,
+                     boolean found) {
+        PostEvent e = new PostEvent();
+        if (!e.isEnabled()) return;
+        e.endpoint = endpoint;
+        e.read = read;
+        e.deliver = deliver;
+        e.bytes = bytes;
+        e.found = found;
+        e.commit();
+    }
+
+    public void sendResult(TokenWithEndpoint tok, long queued, long handled,
+                           boolean found) {
+        SendResultEvent e = new SendResultEvent();
+        if (!e.isEnabled()) return;
+        e.endpoint = tok.getEndpointToken();
+        e.queued = queued;
+        e.handled = handled;
+        e.found = found;
+        e.commit();
+    }
+
+    public void run(TokenWithEndpoint tok, long queued, long ran, int flags) {
+        RunEvent e = new RunEvent();
+        if (!e.isEnabled()) return;
+        e.endpoint = tok.getEndpointToken();
+        e.queued = queued;
+        e.ran = ran;
+        e.flags = flags;
+        e.commit();
+    }
+
+    public void write(TokenWithEndpoint tok, long duration, boolean result) {
+        WriteEvent e = new WriteEvent();
+        if (!e.isEnabled()) return;
+        e.endpoint = tok.getEndpointToken();
+        e.writing = duration;
+        e.result = result;
+        e.commit();
+    }
+}
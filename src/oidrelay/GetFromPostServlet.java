@@ -18,17 +18,39 @@ SOFTWARE.
 */
 package oidrelay;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.CancellationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.LockSupport;
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -43,9 +65,13 @@ import javax.servlet.http.HttpServletResponse;
  *
  * The design uses a small thread pool to service requests. This may allow a
  * little more concurrency than simply doing it all in one thread and seems more
- * idiomatic Java. To work around the problems of blocking writes using the
- * servlet API, we have an auxiliary thread that runs timers to interrupt writes
- * if they are suspected of blocking (50ms seems a good guess).
+ * idiomatic Java. No thread ever blocks on a client: parked GETs live in a
+ * sharded JobPool, and both a GET's output and a POST's body go through the
+ * Servlet 3.1 non-blocking I/O.
+ *
+ * The rest is optional, and documented where it lives: admission
+ * control, resuming a dropped GET, clustering, multiplexed GETs, WebSocket
+ * connections, scope POSTs, an event log and Flight Recorder tracing.
  *
  * Supposedly, the actions and format of the any output is farmed out through
  * some interfaces TokenFactory and RequestHandler, so this servlet simply
@@ -66,59 +92,306 @@ public class GetFromPostServlet extends HttpServlet
     public interface RequestHandler {
         public void formatPostResult(HttpServletResponse resp, boolean dispatched)
                 throws IOException;
-        public String formatPostMessage();
         public void formatReplyHeader(ServletResponse resp, String endpoint)
                 throws IOException;
         public void formatReplyKeepalive(ServletResponse resp, int n)
                 throws IOException;
+        /** The GET's POST arrived, and this is its body, as sent. */
+        public void formatReplyResult(ServletResponse resp, Payload body)
+                throws IOException;
+        /** The GET is ending without a result; message says why. */
         public void formatReplyComplete(ServletResponse resp, String message)
                 throws IOException;
+        /** One of a multiplexed GET's tokens got its POST; tag is the
+         *  token's endpoint. The GET carries on. */
+        public void formatReplyTaggedResult(ServletResponse resp, String tag,
+                                            Payload body)
+                throws IOException;
+        /** One of a multiplexed GET's tokens is done with, without a
+         *  result; message says why. */
+        public void formatReplyTaggedComplete(ServletResponse resp, String tag,
+                                              String message)
+                throws IOException;
         public boolean validateReplyRequest(HttpServletRequest req,
                                             HttpServletResponse resp)
                 throws IOException;
     }
 
-    static public class TokenWithEndpoint {
-        TokenWithEndpoint(String t, String eT, String eS)
-        { token = t; endpointToken = eT; endpointScope = eS; }
-        final public String token;
-        final public String endpointToken;
-        final public String endpointScope;
+    /**
+     * A token identifies a pending GET. The JobPool uses tokens as hash keys,
+     * so a factory can subclass this to compare and hash tokens more cheaply
+     * than by their strings. A token lives as long as its GET is parked, so
+     * it had better build the strings only when asked, and not keep them.
+     */
+    static public abstract class TokenWithEndpoint {
+        public abstract String getToken();
+        public abstract String getEndpointToken();
+        public abstract String getEndpointScope();
+        /** @return the node which minted the token, or -1 if not known */
+        public int getNode() { return -1; }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TokenWithEndpoint &&
+                   getToken().equals(((TokenWithEndpoint)o).getToken());
+        }
+        @Override
+        public int hashCode() { return getToken().hashCode(); }
+    }
+    /** What a TokenFactory sees of a GET, or of a WebSocket handshake: who
+     *  made it, and its query parameters. */
+    static public interface TokenRequest {
+        public String getRemoteUser();
+        public String getParameter(String name);
     }
     static public interface TokenFactory {
         /** Used to create a token for a GET request. */
-        public TokenWithEndpoint mintToken(HttpServletRequest req)
+        public TokenWithEndpoint mintToken(TokenRequest req)
                 throws ServletException;
         /** Used to extract a token from the POST request parameters.
          *  @return null if the URL is not mapped to the token factory.
          */
         public TokenWithEndpoint extractToken(String reqURI);
+        /** Used to find the token a GET asks to pick up again, after losing
+         *  its connection. Should only return a token for a request which
+         *  mintToken would also accept.
+         *  @return null if the GET doesn't ask to resume a token.
+         */
+        public TokenWithEndpoint resumeToken(TokenRequest req);
+        /** Used to recognise a POST to a whole scope (the URL of some
+         *  token's getEndpointScope()), which goes to all its GETs.
+         *  @return the scope, or null if the URL is not one */
+        public String extractScope(String reqURI);
+        /** Used to check who may POST to a scope: the scope mintToken
+         *  would put req's tokens in, without minting one.
+         *  @return null if mintToken would refuse req */
+        public String scopeFor(TokenRequest req);
     }
 
     protected RequestHandler requestHandler = null;
     protected TokenFactory tokenFactory = null;
+    /** A client which has stopped accepting output for longer than this
+     *  (ms) by the time its next keepalive is due is disconnected. */
     protected int ioTimeoutInterval = 50;
     protected int keepaliveInterval = 10;
-    protected int maxKeepalive = 5*60*1000/keepaliveInterval;
+    protected int requestTimeout = 5*60*1000;
+    protected int timerResolution = 1;
     protected int threadPoolCore = 5;
+    /** "virtual" runs each Job run on its own virtual thread instead of
+     *  the fixed pool, where the JVM has them (Java 21 onwards). Runs never
+     *  block, so this lifts the ceiling of threadPoolCore concurrent runs
+     *  without an OS thread per connection; timing stays with the shards. */
+    protected String executionMode =
+        System.getProperty("oidrelay.executionMode", "platform");
+    protected int numShards = Runtime.getRuntime().availableProcessors();
+    /** Admission control, so that a reconnect storm can't park GETs until
+     *  the heap runs out: doGet turns a GET away with 503 and Retry-After
+     *  if maxParkedGets are parked, if its user already has
+     *  maxParkedGetsPerUser, or if maxQueuedRuns Job runs are waiting for a
+     *  worker. Zero or less means no limit. */
+    protected int maxParkedGets = 50000;
+    protected int maxParkedGetsPerUser = 100;
+    protected int maxQueuedRuns = 10000;
+    protected int retryAfter = 5;  // seconds
+    /** Bigger POST bodies get 413; see PostReader. */
+    protected int maxPostBody = 64*1024;
+    protected int postTimeout = 30*1000;
+    /** A GET whose connection drops, or which has just been sent its
+     *  result (which may have died in flight), leaves its token in a
+     *  mailbox for resultTtl, holding any result POSTed meanwhile. A GET
+     *  resuming the token (see TokenFactory.resumeToken) takes it over, and
+     *  gets the result at once if it's there. The mailbox holds at most
+     *  maxMailboxed tokens, oldest out first. */
+    protected int resultTtl = 60*1000;
+    protected int maxMailboxed = 10000;
+    /** How long a multiplexed GET stays open, and how many tokens it may
+     *  carry at once; see MuxJob. */
+    protected int streamTimeout = 60*60*1000;
+    protected int maxTokensPerStream = 1000;
+    /** Eg. "/ws": also takes WebSocket connections there, each handled like
+     *  a GET in the same JobPool, but with compact frames, and protocol pings
+     *  for keepalives (see RelaySocket). The servlet must then be loaded at
+     *  startup, while the container still takes endpoints. */
+    protected String socketPath = System.getProperty("oidrelay.socketPath");
+    protected int socketPingInterval = 30;  // seconds
+    protected int socketPongTimeout = 60;   // seconds
+    final protected AdmissionControl admission = new AdmissionControl();
+    /** To share the load as one relay cluster, give each servlet a distinct
+     *  nodeId and the same peerAddresses ("0=host:port,1=host:port", every
+     *  node including this one). Tokens then record the node which minted
+     *  them, and a POST landing anywhere else is forwarded there by a
+     *  PeerRelay, with no container thread waiting for the answer. Tokens
+     *  from a TokenFactory which doesn't record a node stay where they land. */
+    protected int nodeId = Integer.getInteger("oidrelay.nodeId", -1);
+    protected String peerAddresses = System.getProperty("oidrelay.peers", "");
+    protected int peerTimeout = 5000;
+    protected PeerRelay peers = null;
+    final protected RelayMetrics metrics = new RelayMetrics();
+    /** A file to log each mint, delivery, timeout, I/O failure and shutdown
+     *  to, a line each, and unexpected errors instead of stderr; no thread
+     *  which sees one waits on the file (see EventLog). */
+    protected String eventLog = System.getProperty("oidrelay.eventLog");
+    protected int eventLogSize = 8192;  // events waiting for the writer
+    protected long eventLogMaxBytes = 64L*1024*1024;
+    protected int eventLogFiles = 4;
+    final protected EventLog events = new EventLog(metrics.eventDrops);
+    /** JDK Flight Recorder events for each stage, where the JVM has it. */
+    protected RelayTrace trace = RelayTrace.load();
+    static final int SC_MISDIRECTED_REQUEST = 421;
+
+    // GenericServlet method
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+        if (eventLog != null) {
+            try {
+                events.start(eventLog, eventLogSize, eventLogMaxBytes,
+                             eventLogFiles);
+            } catch (IOException e) {
+                throw new ServletException("Can't open the event log", e);
+            }
+        }
+        try {
+            pool = new JobPool(threadPoolCore, numShards, executionMode);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e.getMessage());
+        }
+        metrics.gauges = new RelayMetrics.Gauges() {
+            public int executorQueueDepth()
+            { return pool.executor instanceof ThreadPoolExecutor ?
+                     ((ThreadPoolExecutor)pool.executor).getQueue().size() : 0; }
+        };
+        getServletContext().setAttribute(
+            RelayMetrics.ATTRIBUTE_PREFIX+getServletName(), metrics);
+        if (nodeId >= 0 && !peerAddresses.isEmpty()) {
+            peers = new PeerRelay(nodeId, PeerRelay.parsePeers(peerAddresses),
+                                  new PeerRelay.Delivery() {
+                public boolean deliver(String relUri, Payload body) {
+                    String scope = tokenFactory.extractScope(relUri);
+                    if (scope != null)
+                        return deliverToScope(scope, body) > 0;
+                    return deliverLocally(tokenFactory.extractToken(relUri),
+                                          body);
+                }
+            }, new Executor() {
+                public void execute(Runnable task) { pool.execute(task); }
+            }, peerTimeout, events);
+            try {
+                peers.start();
+            } catch (IOException e) {
+                throw new ServletException("Can't listen for relay peers", e);
+            }
+        }
+        if (socketPath != null) {
+            // Looked up reflectively, so the servlet still loads in a
+            // container without the WebSocket API
+            try {
+                Class.forName("oidrelay.RelaySocket")
+                    .getMethod("register", GetFromPostServlet.class)
+                    .invoke(null, this);
+            } catch (InvocationTargetException e) {
+                throw new ServletException("Can't add the WebSocket endpoint",
+                                           e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new ServletException("Can't add the WebSocket endpoint", e);
+            } catch (LinkageError e) {
+                throw new ServletException("No WebSocket API in this container",
+                                           e);
+            }
+        }
+    }
 
     // GenericServlet method
     @Override
     public void destroy()
     {
-        pool.closeTasks();
-        pool.shutdown();
+        if (getServletConfig() != null)
+            getServletContext().removeAttribute(
+                RelayMetrics.ATTRIBUTE_PREFIX+getServletName());
+        if (peers != null) peers.close();
+        if (pool != null) {
+            pool.closeTasks();
+            pool.shutdown();
+        }
+        events.close();
         super.destroy();
     }
 
-    protected class Job implements Runnable {
+    /**
+     * A result for a Job: a POST's body, or why there won't be one. Whoever
+     * holds a Result with a body holds a reference to the body (see
+     * Payload).
+     */
+    static final protected class Result {
+        final Payload body;
+        final String message;
+        final long postedAt;  // System.nanoTime() of the POST; 0 if none
+        Result(Payload body_, long postedAt_)
+        { body = body_; message = null; postedAt = postedAt_; }
+        Result(String message_)
+        { body = null; message = message_; postedAt = 0; }
+    }
+    static final Result TIMED_OUT = new Result("FAILED: request timed out");
+    static final Result SHUT_DOWN = new Result("FAILED: server shutdown");
+    static final Result SUPERSEDED =
+        new Result("FAILED: resumed on another connection");
+    // Left in a Job once the shard has taken its result off it
+    static final Result FINISHED = new Result("FAILED: finished");
+    static final Result CANCELLED = new Result("FAILED: cancelled");
+
+    // Job.state: the phase in the bottom two bits, then flags
+    static final int IDLE = 0, SCHEDULED = 1, RUNNING = 2, COMPLETING = 3;
+    static final int PHASE = 3;
+    static final int POKE = 4;        // something to look at: run again
+    static final int KEEPALIVE = 8;   // a keepalive is due
+    static final int IO_ERROR = 16;   // the container reported an error
+    static final int ORPHANED = 32;   // the pool has let go of us
+    static final int REQUESTS = POKE | KEEPALIVE | IO_ERROR;
+    static final AtomicIntegerFieldUpdater<Job> JOB_STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Job.class, "state");
+    static final AtomicReferenceFieldUpdater<Job,Result> JOB_RESULT =
+        AtomicReferenceFieldUpdater.newUpdater(Job.class, Result.class,
+                                               "result");
+
+    /**
+     * One parked GET. Only one thread at a time ever runs a Job, and only
+     * that thread formats output or touches the connection; the state word
+     * makes sure of it. Anyone else (a POST, the shard's timers, the
+     * container's callbacks) just sets a flag or publishes the result with
+     * a CAS and schedules a run, so none of them ever waits on a Job's I/O.
+     *
+     * The phases go IDLE -> SCHEDULED (queued on the executor) -> RUNNING ->
+     * IDLE again, or from RUNNING to COMPLETING, which is final. A request
+     * which arrives while the job is scheduled or running is left as a flag
+     * for that run to pick up, and a run doesn't go back to IDLE while there
+     * are flags left.
+     */
+    protected class Job extends TimingWheel.Timer
+            implements Runnable, WriteListener {
         final protected AsyncContext async;
         final protected TokenWithEndpoint token;
-        protected JobPool pool;
+        final protected PendingOutput pending = new PendingOutput();
+        final protected ServletResponse bufferedResponse;
+        final protected JobPool pool;
         protected String baseURL;
-        protected String message = null;
-        protected Future<?> task = null;
-        protected int numRuns = 0;
+        protected volatile int state = IDLE;
+        protected volatile Result result = null;
+        // Output state, only touched by the running thread
+        protected int numRuns = 0;  // runs which said something
+        protected boolean needFlush = false;
+        protected Result committed = null;
+        protected boolean delivered = false;
+        protected long stalledSince = 0;
+        protected long writeStartedAt = 0;
+        protected long scheduledAt = 0;  // only while tracing
+        // Absolute System.nanoTime() deadlines, owned by the shard thread
+        protected long nextKeepalive = 0;
+        protected long deadline = 0;
+        // What the job was counted against by admission control, if anything
+        protected AdmissionControl.Slot admitted = null;
+        // Its shard's list of the jobs with the same endpoint scope
+        protected Job scopePrev = null, scopeNext = null;
+        protected RequestHandler handler = requestHandler;
         public TokenWithEndpoint getToken() { return token; }
         public Job(AsyncContext async_, TokenWithEndpoint token_,
                    JobPool pool_, String baseURL_) {
@@ -126,160 +399,844 @@ public class GetFromPostServlet extends HttpServlet
             token = token_;
             pool = pool_;
             baseURL = baseURL_;
+            // (No AsyncContext for a job with a connection of its own; see
+            // RelaySocket)
+            bufferedResponse = async == null ? null :
+                               pending.wrap(async.getResponse());
+        }
+
+        /** How long the GET may stay parked, in ms. */
+        protected long lifetime() { return requestTimeout; }
+
+        /** When the wheel should next wake the job, short of its deadline;
+         *  called on the shard thread. */
+        protected long keepaliveAfter(long now) {
+            return now + TimeUnit.MILLISECONDS.toNanos(keepaliveInterval);
         }
 
-        class JobPoolPtr { public JobPool p; JobPoolPtr(JobPool p_) { p = p_; } }
-        // run2() returns a value via the JobPoolPtr even if it exits with an
-        // uncaught exception
-        protected synchronized void run2(JobPoolPtr ptr) {
-            // Return this on the stack so we can report back to the JobPool in
-            // a thread-safe way
-            ptr.p = null;
-            boolean commit = false;
-            Future<?> ioInterrupter = null;
+        /** Formats any results for other tokens; see MuxJob.
+         *  @return whether anything was written */
+        protected boolean formatTagged() throws IOException { return false; }
+
+        // Formats whatever is due into the pending buffer, then pushes as
+        // much as the client will take without blocking.
+        protected void run2(int flags) {
             try {
-                if (pool != null)
-                    try {
-                        ioInterrupter = pool.scheduleCancel(task, ioTimeoutInterval);
-                    } catch (RejectedExecutionException e) {
-                        // If we can't schedule a interrupter (or pool is null)
-                        // be lenient and just carry on (client write will
-                        // time out after 30s).
-                    }
-                ServletResponse resp = async.getResponse();
                 boolean onFirstRun = (numRuns == 0);
-                if (onFirstRun)
-                    requestHandler.formatReplyHeader(resp,
-                                                     baseURL+token.endpointToken);
-                ++numRuns;
-                if (pool == null && message == null)
-                    message = "FAILED: server shutdown";
-                if (numRuns > maxKeepalive && message == null)
-                    message = "FAILED: request timed out";
-
-                if (message != null) {
-                    requestHandler.formatReplyComplete(resp, message);
-                    commit = true;
-                } else if (!onFirstRun) {
-                    requestHandler.formatReplyKeepalive(resp, numRuns);
+                if (onFirstRun) {
+                    async.getResponse().getOutputStream().setWriteListener(this);
+                    handler.formatReplyHeader(bufferedResponse,
+                                              baseURL+token.getEndpointToken());
+                    ++numRuns;
+                    needFlush = true;
+                }
+                if ((flags & IO_ERROR) != 0) {
+                    finish();
+                    return;
+                }
+                if (stalledSince != 0 && System.nanoTime() - stalledSince >
+                        TimeUnit.MILLISECONDS.toNanos(ioTimeoutInterval)) {
+                    metrics.stalledDisconnects.increment();
+                    events.record(EventLog.STALLED, token);
+                    finish();
+                    return;
+                }
+
+                boolean wrote = committed == null && formatTagged();
+                Result r = result;
+                // Hold on to the body while we write it; if it went away
+                // meanwhile, so did the result
+                while (r != null && r.body != null && !r.body.tryRetain())
+                    r = result;
+                if (committed != null) {
+                    if (r != null && r.body != null) r.body.release();
+                } else if (r != null) {
+                    committed = r;
+                    if (r.body != null)
+                        handler.formatReplyResult(bufferedResponse, r.body);
+                    else
+                        handler.formatReplyComplete(bufferedResponse, r.message);
+                    needFlush = true;
+                } else if ((flags & KEEPALIVE) != 0 && !onFirstRun &&
+                           !wrote && stalledSince == 0) {
+                    // No point piling keepalives up behind a stalled write
+                    handler.formatReplyKeepalive(bufferedResponse, ++numRuns);
+                    needFlush = true;
                 }
-                resp.getOutputStream().flush();
             } catch (IOException e) {
-                // handle in "finally"
-                commit = true;
-            } finally {
-                if (ioInterrupter != null) {
-                    ioInterrupter.cancel(true);
-                    while (true) {
-                        try {
-                            ioInterrupter.get();
-                        } catch (InterruptedException e) {
-                            continue;
-                        } catch (CancellationException e) {
-                        } catch (ExecutionException e) {
-                            e.printStackTrace();
+                metrics.ioFailures.increment();
+                events.record(EventLog.IO_FAILURE, token, 0, e);
+                finish();
+                return;
+            }
+            drain();
+        }
+
+        protected void drain() {
+            try {
+                ServletOutputStream out = async.getResponse().getOutputStream();
+                while (out.isReady()) {
+                    if (pending.size() > 0) {
+                        if (writeStartedAt == 0) writeStartedAt = System.nanoTime();
+                        pending.writeTo(out);
+                    } else if (needFlush) {
+                        needFlush = false;
+                        out.flush();
+                    } else {
+                        long now = System.nanoTime();
+                        if (writeStartedAt != 0) {
+                            metrics.writeDuration.record(now - writeStartedAt);
+                            if (trace.enabled())
+                                trace.write(token, now - writeStartedAt,
+                                            committed != null);
+                        }
+                        writeStartedAt = 0;
+                        stalledSince = 0;
+                        if (committed != null) {
+                            if (committed.postedAt != 0) {
+                                metrics.postToDelivery.record(
+                                    now - committed.postedAt);
+                                events.record(EventLog.DELIVER, token,
+                                              now - committed.postedAt, null);
+                            }
+                            delivered = true;
+                            finish();
                         }
-                        break;
+                        return;
                     }
                 }
-                if (commit) {
-                    async.complete();
-                    ptr.p = pool;
-                }
-                // whatever we were doing, we did it so can be scheduled again
-                task = null;
+                // The container calls onWritePossible() when it's ready again
+                if (stalledSince == 0) stalledSince = System.nanoTime();
+            } catch (IOException e) {
+                metrics.ioFailures.increment();
+                events.record(EventLog.IO_FAILURE, token, 0, e);
+                finish();
             }
         }
 
-        public void run() {
-            // A synchronized method on Job must never wait on the JobPool as
-            // this would cause deadlock. We run the job, then report back the
-            // state at any time afterwards.
-            JobPoolPtr lp = new JobPoolPtr(null);
+        // Only ever called by the running thread
+        protected void finish() {
+            int s;
+            do {
+                s = state;
+            } while (!JOB_STATE.compareAndSet(this, s,
+                                              (s & ~PHASE) | COMPLETING));
+            close();
+            if (committed != null && committed.body != null)
+                committed.body.release();
+            if ((s & ORPHANED) == 0) {
+                pool.completeJob(this);  // which disposes of our result
+            } else {
+                Result r = JOB_RESULT.getAndSet(this, FINISHED);
+                if (r != null && r.body != null) r.body.release();
+            }
+            if (admitted != null)
+                admission.release(admitted);
+        }
+
+        /** Ends the connection; called once, by finish(). */
+        protected void close() {
             try {
-                run2(lp);
-            } finally {
-                if (lp.p != null)
-                    lp.p.completeJob(this);
+                async.complete();
+            } catch (IllegalStateException e) {
+                // the container already gave up on the request
             }
         }
-        
-        public synchronized void addToPool(JobPool p) {
-            if (task == null)
-                task = p.submit(this);
+
+        public void run() {
+            int s;
+            do {
+                s = state;
+                if ((s & PHASE) != SCHEDULED) return;
+            } while (!JOB_STATE.compareAndSet(this, s, (s & ~PHASE) | RUNNING));
+            long queuedSince = scheduledAt;
+            scheduledAt = 0;
+            while (true) {
+                do {
+                    s = state;
+                } while (!JOB_STATE.compareAndSet(this, s, s & ~REQUESTS));
+                if (trace.enabled()) {
+                    long t = System.nanoTime();
+                    run2(s);
+                    trace.run(token, queuedSince == 0 ? 0 : t - queuedSince,
+                              System.nanoTime() - t, s);
+                    queuedSince = 0;
+                } else {
+                    run2(s);
+                }
+                s = state;
+                if ((s & PHASE) == COMPLETING) return;
+                // Anything which came in while we ran gets seen to now
+                if ((s & REQUESTS) == 0 &&
+                    JOB_STATE.compareAndSet(this, s, (s & ~PHASE) | IDLE))
+                    return;
+            }
         }
 
-        public synchronized void orphan() { pool = null; }
-        public synchronized void setMessage(String m) { message = m; }
-    }
+        // WriteListener methods, called by the container
+        public void onWritePossible() { schedule(POKE); }
+        public void onError(Throwable t) {
+            metrics.ioFailures.increment();
+            events.record(EventLog.IO_FAILURE, token, 0, t);
+            schedule(IO_ERROR);
+        }
 
-    protected class JobPool {
-        final protected ScheduledThreadPoolExecutor scheduler;
-        final protected ScheduledThreadPoolExecutor interruptor;
-        JobPool(int corePoolSize) {
-            scheduler = new ScheduledThreadPoolExecutor(corePoolSize);
-            interruptor = new ScheduledThreadPoolExecutor(1);
-         }
-        ScheduledFuture<?> keepaliveTimer = null;
-        final protected HashMap<String,Job> jobs = new HashMap<String,Job>();
-
-        public Future<?> submit(Runnable task)
-        { // XXX throw something fat if we exceed a certain queue size
-          return scheduler.submit(task); }
-        
-        public Future<?> scheduleCancel(final Future<?> task, int timeout) {
-            return interruptor.schedule(new Runnable() {
-                public void run() {
-                    task.cancel(true);
+        /** Asks for a run to see to the given REQUESTS flags. Never waits. */
+        public void schedule(int flags) {
+            while (true) {
+                int s = state;
+                int phase = s & PHASE;
+                if (phase == COMPLETING) return;
+                if (phase != IDLE) {
+                    // The run under way (or queued) will pick it up
+                    if (JOB_STATE.compareAndSet(this, s, s | flags)) return;
+                    continue;
                 }
-            }, timeout, TimeUnit.MILLISECONDS);
+                if (!JOB_STATE.compareAndSet(this, s, s | SCHEDULED | flags))
+                    continue;
+                if (trace.enabled()) scheduledAt = System.nanoTime();
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The queue is full (or we're shutting down). The flags
+                    // stay set, and the job is still in the wheel, so it
+                    // gets another go at its next keepalive.
+                    metrics.runRejects.increment();
+                    do {
+                        s = state;
+                    } while (!JOB_STATE.compareAndSet(this, s,
+                                                      (s & ~PHASE) | IDLE));
+                }
+                return;
+            }
         }
 
-        public void shutdown()
-        { interruptor.shutdown(); scheduler.shutdown(); }
+        /** The pool is shutting down: say so and finish. */
+        public void orphan() {
+            JOB_RESULT.compareAndSet(this, null, SHUT_DOWN);
+            int s;
+            do {
+                s = state;
+            } while (!JOB_STATE.compareAndSet(this, s, s | ORPHANED));
+            schedule(POKE);
+        }
+        /** Hands any POSTed result over to the GET resuming our token, and
+         *  tells our own client to go away. */
+        public void supersede(Job by) {
+            Result r = JOB_RESULT.getAndSet(this, SUPERSEDED);
+            if (r != null && r.body != null) {
+                by.publish(r);
+                r.body.release();
+            }
+            schedule(POKE);
+        }
+        /** Publishes the job's result, unless it already has one. The job
+         *  takes its own reference to the body.
+         *  @return whether this was the result */
+        public boolean publish(Result r) {
+            if (r.body != null && !r.body.tryRetain()) return false;
+            if (!JOB_RESULT.compareAndSet(this, null, r)) {
+                if (r.body != null) r.body.release();
+                return false;
+            }
+            schedule(POKE);
+            return true;
+        }
+        public void timeout() {
+            if (JOB_RESULT.compareAndSet(this, null, TIMED_OUT)) {
+                metrics.timeouts.increment();
+                events.record(EventLog.TIMEOUT, token);
+            }
+            schedule(POKE);
+        }
 
-        public synchronized void closeTasks() {
-            for (Job job : jobs.values()) {
-                job.orphan();
-                job.addToPool(this);
+        /** Called by the owning shard's wheel, on the shard thread. */
+        protected void expire(TimingWheel wheel, long now) {
+            metrics.keepaliveDrift.record(now - (nextKeepalive - deadline < 0 ?
+                                                 nextKeepalive : deadline));
+            if (now - deadline >= 0) {
+                nextKeepalive = now + TimeUnit.MILLISECONDS.toNanos(
+                                              keepaliveInterval);
+                // Keep coming back until the job has finished: a client
+                // which stops reading its result is only noticed by a run
+                deadline = nextKeepalive;
+                wheel.schedule(this, deadline);
+                timeout();
+                return;
             }
-            jobs.clear();
+            nextKeepalive = keepaliveAfter(now);
+            wheel.schedule(this, nextKeepalive - deadline < 0 ?
+                                 nextKeepalive : deadline);
+            schedule(KEEPALIVE);
         }
+    }
+
+    /** A result for one of a MuxJob's tokens. */
+    static final protected class Tagged {
+        final TokenWithEndpoint token;
+        final Result result;
+        Tagged(TokenWithEndpoint token_, Result result_)
+        { token = token_; result = result_; }
+    }
+
+    /**
+     * A multiplexed GET. Its own token names the stream, and is what its
+     * header gives the client; the tokens minted on it have their results
+     * queued here by their shards, to be written by the job's runs as tagged
+     * frames. The job's own result only ever ends the stream (a timeout,
+     * shutdown, or resume), so a POST to the stream's own endpoint is
+     * refused.
+     *
+     * A GET with a "mux" parameter gets one, open for streamTimeout, and
+     * tokens are added by POSTing its endpoint as "stream" (see
+     * mintOnStream). The stream gets one keepalive however many tokens it
+     * carries; they still time out separately, after requestTimeout.
+     */
+    protected class MuxJob extends Job {
+        final protected ConcurrentLinkedQueue<Tagged> tagged =
+            new ConcurrentLinkedQueue<Tagged>();
+        final protected AtomicInteger outstanding = new AtomicInteger();
 
-        public synchronized void doKeepalive() {
-            for (Job job : jobs.values()) {
-                job.addToPool(this);
+        public MuxJob(AsyncContext async_, TokenWithEndpoint token_,
+                      JobPool pool_, String baseURL_) {
+            super(async_, token_, pool_, baseURL_);
+        }
+
+        protected long lifetime() { return streamTimeout; }
+
+        /** Counts one more token in, unless maxTokensPerStream are out. */
+        public boolean reserve() {
+            while (true) {
+                int n = outstanding.get();
+                if (maxTokensPerStream > 0 && n >= maxTokensPerStream)
+                    return false;
+                if (outstanding.compareAndSet(n, n + 1)) return true;
             }
         }
 
-        public synchronized boolean sendResult(String token, String message) {
-            Job job = jobs.get(token);
-            if (job != null) {
-                job.setMessage(message);
-                job.addToPool(this);
+        /** Gives back a reserve() which no token came of. */
+        public void unreserve() { outstanding.decrementAndGet(); }
+
+        /** Queues the result for one of our tokens, taking a reference to
+         *  its body. Called on the token's shard thread.
+         *  @return false if the stream has already ended */
+        public boolean deliver(TokenWithEndpoint tok, Result r) {
+            outstanding.decrementAndGet();
+            if ((state & PHASE) == COMPLETING) return false;
+            if (r.body != null && !r.body.tryRetain()) return false;
+            tagged.offer(new Tagged(tok, r));
+            if ((state & PHASE) == COMPLETING) {
+                // finish() may have emptied the queue before we filled it
+                dropTagged();
+                return false;
             }
-            return job != null;
+            schedule(POKE);
+            return true;
         }
 
-        public synchronized void addJob(Job job) {
-            jobs.put(job.getToken().token, job);
-            job.addToPool(this);
-            if (keepaliveTimer == null) {
-                keepaliveTimer = scheduler.scheduleWithFixedDelay(new Runnable() {
-                    public void run() { JobPool.this.doKeepalive(); }
-                }, 1000, keepaliveInterval, TimeUnit.MILLISECONDS);
+        public boolean publish(Result r) {
+            return r.body == null && super.publish(r);
+        }
+
+        protected boolean formatTagged() throws IOException {
+            boolean wrote = false;
+            Tagged t;
+            while ((t = tagged.poll()) != null) {
+                Result r = t.result;
+                try {
+                    String tag = baseURL+t.token.getEndpointToken();
+                    if (r.body != null) {
+                        handler.formatReplyTaggedResult(bufferedResponse, tag,
+                                                        r.body);
+                        long took = System.nanoTime() - r.postedAt;
+                        metrics.postToDelivery.record(took);
+                        events.record(EventLog.DELIVER, t.token, took, null);
+                    } else {
+                        handler.formatReplyTaggedComplete(bufferedResponse,
+                                                          tag, r.message);
+                    }
+                } finally {
+                    if (r.body != null) r.body.release();
+                }
+                wrote = true;
             }
+            if (wrote) needFlush = true;
+            return wrote;
         }
 
-        public synchronized void completeJob(Job job) {
-            jobs.remove(job.getToken().token);
-            if (jobs.size() == 0 && keepaliveTimer != null) {
-                keepaliveTimer.cancel(false);
-                keepaliveTimer = null;
+        protected void finish() {
+            super.finish();
+            dropTagged();
+        }
+
+        protected void dropTagged() {
+            Tagged t;
+            while ((t = tagged.poll()) != null)
+                if (t.result.body != null) t.result.body.release();
+        }
+    }
+
+    /**
+     * Where the result for a token minted on a MuxJob goes. It sits in the
+     * token's shard, and that shard's wheel, until the result comes or
+     * requestTimeout passes.
+     */
+    protected class MuxRoute extends TimingWheel.Timer {
+        final protected TokenWithEndpoint token;
+        final protected MuxJob stream;
+        protected JobPool.Shard shard = null;  // set once it's added
+        MuxRoute(TokenWithEndpoint token_, MuxJob stream_)
+        { token = token_; stream = stream_; }
+        protected void expire(TimingWheel wheel, long now)
+        { shard.expireRoute(this); }
+    }
+
+    /** A token in the mailbox, and what was POSTed to it if anything. */
+    static final protected class Mailed {
+        Result result;      // null until a POST comes
+        boolean delivered;  // already sent once; only a resume gets it again
+        long expiry;
+    }
+
+    /**
+     * The pending jobs, split into shards, each owned by a single thread.
+     * Tokens are hashed to a shard, and other threads never touch a shard's
+     * table directly: they post work to its inbox and, where they need an
+     * answer, wait for just that shard. A POST therefore never queues up
+     * behind a keepalive sweep of the whole pool.
+     */
+    protected class JobPool {
+        final protected ExecutorService executor;
+        final protected Shard[] shards;
+        JobPool(int corePoolSize, int nShards, String mode) {
+            ExecutorService e = null;
+            if ("virtual".equals(mode)) {
+                e = newVirtualThreadExecutor();
+                if (e == null)
+                    log("Virtual threads need Java 21;"+
+                        " using a pool of platform threads");
+            } else if (!"platform".equals(mode)) {
+                throw new IllegalArgumentException("Bad executionMode "+mode);
+            }
+            executor = e != null ? e : Executors.newFixedThreadPool(corePoolSize);
+            shards = new Shard[Math.max(1, nShards)];
+            for (int i = 0; i < shards.length; ++i) {
+                shards[i] = new Shard(i);
+                shards[i].start();
             }
         }
+
+        /**
+         * A Shard owns a slice of the jobs table, and only the shard's own
+         * thread ever reads or writes it, so no lock is needed. Everyone else
+         * hands work over through the inbox.
+         *
+         * Keepalives and request timeouts are driven from a timing wheel, also
+         * owned by the shard thread. Each job sits in the wheel once, due at
+         * the earlier of its next keepalive and its deadline, so a tick only
+         * costs as much as the jobs which are actually due.
+         */
+        protected class Shard extends Thread {
+            final protected HashMap<TokenWithEndpoint,Job> jobs =
+                new HashMap<TokenWithEndpoint,Job>();
+            final protected ConcurrentLinkedQueue<Runnable> inbox =
+                new ConcurrentLinkedQueue<Runnable>();
+            final protected TimingWheel wheel = new TimingWheel(
+                    TimeUnit.MILLISECONDS.toNanos(timerResolution),
+                    System.nanoTime());
+            // Tokens of GETs which went away early; in expiry order, since
+            // every entry gets the same TTL
+            final protected LinkedHashMap<TokenWithEndpoint,Mailed> mailbox =
+                new LinkedHashMap<TokenWithEndpoint,Mailed>();
+            // Tokens minted on multiplexed GETs, which may be on any shard
+            final protected HashMap<TokenWithEndpoint,MuxRoute> routes =
+                new HashMap<TokenWithEndpoint,MuxRoute>();
+            // The same jobs again, by their tokens' endpoint scope: the head
+            // of a list through Job.scopeNext
+            final protected HashMap<String,Job> scopes =
+                new HashMap<String,Job>();
+            protected volatile boolean running = true;
+
+            Shard(int i) { super("oidrelay-shard-"+i); setDaemon(true); }
+
+            public void post(Runnable r) {
+                inbox.offer(r);
+                LockSupport.unpark(this);
+            }
+
+            /** Runs c on the shard thread and waits for its result. */
+            public <T> T call(Callable<T> c) { return await(submit(c)); }
+
+            /** Runs c on the shard thread; at once, if this is it. */
+            public <T> FutureTask<T> submit(Callable<T> c) {
+                FutureTask<T> f = new FutureTask<T>(c);
+                if (Thread.currentThread() == this) f.run();
+                else post(f);
+                return f;
+            }
+
+            public void run() {
+                while (running || !inbox.isEmpty()) {
+                    Runnable r;
+                    while ((r = inbox.poll()) != null) {
+                        try {
+                            r.run();
+                        } catch (RuntimeException e) {
+                            events.error(getName(), e);
+                        }
+                    }
+                    long now = System.nanoTime();
+                    wheel.advance(now);
+                    if (!mailbox.isEmpty()) expireMail(now);
+                    if (!inbox.isEmpty() || !running) continue;
+                    if (wheel.isEmpty()) LockSupport.park(this);
+                    else LockSupport.parkNanos(this, wheel.nextWakeup() -
+                                                     System.nanoTime());
+                }
+            }
+
+            public void addJob(Job job) {
+                long now = System.nanoTime();
+                job.deadline = now + TimeUnit.MILLISECONDS.toNanos(
+                                         job.lifetime());
+                job.nextKeepalive = job.keepaliveAfter(now);
+                wheel.schedule(job, job.nextKeepalive - job.deadline < 0 ?
+                                    job.nextKeepalive : job.deadline);
+                jobs.put(job.getToken(), job);
+                index(job);
+                metrics.pendingJobs.increment();
+                job.schedule(POKE);
+            }
+
+            public void completeJob(Job job) {
+                Result r = JOB_RESULT.getAndSet(job, FINISHED);
+                // The token may have been taken over by a resumed GET
+                if (jobs.remove(job.getToken(), job)) {
+                    unindex(job);
+                    metrics.pendingJobs.decrement();
+                    // A GET could still want the token, and whatever was
+                    // POSTed to it; not if it timed out, or was a stream
+                    if ((r == null || r.body != null) &&
+                        !(job instanceof MuxJob))
+                        mail(job.getToken(), r, job.delivered,
+                             System.nanoTime());
+                }
+                if (r != null && r.body != null) r.body.release();
+                wheel.cancel(job);
+            }
+
+            public boolean sendResult(TokenWithEndpoint token, Result r) {
+                Job job = jobs.get(token);
+                if (job != null)
+                    return job.publish(r);
+                MuxRoute route = routes.remove(token);
+                if (route != null) {
+                    wheel.cancel(route);
+                    return route.stream.deliver(token, r);
+                }
+                Mailed m = mailbox.get(token);
+                if (m == null || m.delivered || m.expiry - r.postedAt <= 0)
+                    return false;
+                mail(token, r, false, r.postedAt);
+                metrics.mailboxedPosts.increment();
+                return true;
+            }
+
+            /** Parks job in place of whatever holds its token now.
+             *  @return false if nothing does, and job wasn't parked */
+            public boolean resumeJob(Job job) {
+                long now = System.nanoTime();
+                Mailed m = mailbox.remove(job.getToken());
+                if (m != null && m.expiry - now <= 0) {
+                    unmail(m);
+                    m = null;
+                }
+                Job old = jobs.get(job.getToken());
+                if (m == null && old == null) return false;
+                if (old != null) {
+                    // The client thinks that connection is dead, even if we
+                    // haven't noticed yet. It stays in the wheel, so that it
+                    // is reaped if it never takes its last output.
+                    jobs.remove(old.getToken());
+                    unindex(old);
+                    metrics.pendingJobs.decrement();
+                    old.supersede(job);
+                } else if (m.result != null) {
+                    job.publish(m.result);
+                }
+                if (m != null) unmail(m);
+                addJob(job);
+                return true;
+            }
+
+            /** Publishes r to each of scope's jobs here.
+             *  @return how many took it */
+            public int sendToScope(String scope, Result r) {
+                int n = 0;
+                for (Job job = scopes.get(scope); job != null;
+                     job = job.scopeNext)
+                    if (job.publish(r)) ++n;
+                return n;
+            }
+
+            // The map keeps the first job's scope string as its key, which
+            // is the only copy we keep
+            protected void index(Job job) {
+                String scope = job.getToken().getEndpointScope();
+                if (scope == null) return;
+                Job head = scopes.put(scope, job);
+                job.scopePrev = null;
+                job.scopeNext = head;
+                if (head != null) head.scopePrev = job;
+            }
+
+            protected void unindex(Job job) {
+                if (job.scopePrev != null) {
+                    job.scopePrev.scopeNext = job.scopeNext;
+                } else {
+                    String scope = job.getToken().getEndpointScope();
+                    if (scope == null || scopes.get(scope) != job) return;
+                    if (job.scopeNext != null) scopes.put(scope, job.scopeNext);
+                    else scopes.remove(scope);
+                }
+                if (job.scopeNext != null)
+                    job.scopeNext.scopePrev = job.scopePrev;
+                job.scopePrev = job.scopeNext = null;
+            }
+
+            public void addRoute(MuxRoute route) {
+                route.shard = this;
+                wheel.schedule(route, System.nanoTime() +
+                                      TimeUnit.MILLISECONDS.toNanos(requestTimeout));
+                routes.put(route.token, route);
+            }
+
+            protected void expireRoute(MuxRoute route) {
+                if (!routes.remove(route.token, route)) return;
+                metrics.timeouts.increment();
+                events.record(EventLog.TIMEOUT, route.token);
+                route.stream.deliver(route.token, TIMED_OUT);
+            }
+
+            // (Re)files token at the back of the mailbox, due to expire
+            // resultTtl after now
+            protected void mail(TokenWithEndpoint token, Result r,
+                                boolean delivered, long now) {
+                if (resultTtl <= 0 || maxMailboxed <= 0) return;
+                if (r != null && r.body != null && !r.body.tryRetain()) return;
+                Mailed m = mailbox.remove(token);
+                if (m == null) m = new Mailed();
+                else unmail(m);
+                m.result = r;
+                m.delivered = delivered;
+                m.expiry = now + TimeUnit.MILLISECONDS.toNanos(resultTtl);
+                mailbox.put(token, m);
+                int cap = Math.max(1, maxMailboxed/shards.length);
+                Iterator<Mailed> it = mailbox.values().iterator();
+                while (mailbox.size() > cap) {
+                    unmail(it.next());
+                    it.remove();
+                }
+            }
+
+            protected void expireMail(long now) {
+                Iterator<Mailed> it = mailbox.values().iterator();
+                while (it.hasNext()) {
+                    Mailed m = it.next();
+                    if (m.expiry - now > 0) break;
+                    unmail(m);
+                    it.remove();
+                }
+            }
+
+            // Lets go of the mailbox's reference to m's body
+            protected void unmail(Mailed m) {
+                if (m.result != null && m.result.body != null)
+                    m.result.body.release();
+                m.result = null;
+            }
+
+            public void closeTasks() {
+                for (Job job : jobs.values()) {
+                    wheel.cancel(job);
+                    job.orphan();
+                }
+                metrics.pendingJobs.add(-jobs.size());
+                events.record(EventLog.SHUTDOWN, getName(), jobs.size(), null);
+                jobs.clear();
+                scopes.clear();
+                // The streams themselves were just told to finish
+                for (MuxRoute route : routes.values()) wheel.cancel(route);
+                routes.clear();
+                for (Mailed m : mailbox.values()) unmail(m);
+                mailbox.clear();
+            }
+
+            public void shutdown() {
+                running = false;
+                LockSupport.unpark(this);
+                boolean interrupted = false;
+                while (isAlive()) {
+                    try {
+                        join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        // Waits for f, however often we're interrupted meanwhile
+        protected <T> T await(FutureTask<T> f) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return f.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable t = e.getCause();
+                        if (t instanceof RuntimeException)
+                            throw (RuntimeException)t;
+                        throw new RuntimeException(t);
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        protected Shard shardFor(TokenWithEndpoint token) {
+            // Take the shard from the top bits of a scrambled hash: the
+            // shard's own HashMap indexes by the bottom bits, and they had
+            // better not all be the same.
+            int h = token.hashCode() * 0x9e3779b9;
+            return shards[(h >>> 8) % shards.length];
+        }
+
+        /** @throws RejectedExecutionException if maxQueuedRuns are queued */
+        public void execute(Runnable task) {
+            if (isSaturated())
+                throw new RejectedExecutionException("Job run queue full");
+            executor.execute(task);
+        }
+
+        /**
+         * Whether the workers are maxQueuedRuns behind. Only the platform
+         * pool has a queue; with virtual threads each parked job has at most
+         * one run outstanding, so maxParkedGets bounds those instead.
+         */
+        public boolean isSaturated() {
+            return maxQueuedRuns > 0 &&
+                   executor instanceof ThreadPoolExecutor &&
+                   ((ThreadPoolExecutor)executor).getQueue().size() >=
+                       maxQueuedRuns;
+        }
+
+        public void shutdown() {
+            for (Shard shard : shards) shard.shutdown();
+            executor.shutdown();
+        }
+
+        // Looked up reflectively so we still build and run before Java 21
+        protected ExecutorService newVirtualThreadExecutor() {
+            try {
+                return (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        public void closeTasks() {
+            for (final Shard shard : shards)
+                shard.call(new Callable<Void>() {
+                    public Void call() { shard.closeTasks(); return null; }
+                });
+        }
+
+        /** Delivers body to the GET for token. The caller keeps its own
+         *  reference to body. */
+        public boolean sendResult(final TokenWithEndpoint token,
+                                  Payload body) {
+            final Shard shard = shardFor(token);
+            final Result r = new Result(body, System.nanoTime());
+            return shard.call(new Callable<Boolean>() {
+                public Boolean call() {
+                    if (!trace.enabled()) return shard.sendResult(token, r);
+                    long t = System.nanoTime();
+                    boolean found = shard.sendResult(token, r);
+                    trace.sendResult(token, t - r.postedAt,
+                                     System.nanoTime() - t, found);
+                    return found;
+                }
+            });
+        }
+
+        /**
+         * Publishes r to every job whose token has the given endpoint scope.
+         * The scope's jobs may be on any shard, so each shard looks in its
+         * own index, all at once, and we wait for them all.
+         * @return how many took it
+         */
+        public int sendToScope(final String scope, final Result r) {
+            ArrayList<FutureTask<Integer>> counts =
+                new ArrayList<FutureTask<Integer>>(shards.length);
+            for (final Shard shard : shards)
+                counts.add(shard.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        return shard.sendToScope(scope, r);
+                    }
+                }));
+            int n = 0;
+            for (FutureTask<Integer> f : counts) n += await(f);
+            return n;
+        }
+
+        /** Parks job in place of an earlier GET for the same token.
+         *  @return false if the token isn't known (any more) */
+        public boolean resumeJob(final Job job) {
+            final Shard shard = shardFor(job.getToken());
+            return shard.call(new Callable<Boolean>() {
+                public Boolean call() { return shard.resumeJob(job); }
+            });
+        }
+
+        /** @return the multiplexed GET parked for token, or null */
+        public MuxJob findStream(final TokenWithEndpoint token) {
+            final Shard shard = shardFor(token);
+            return shard.call(new Callable<MuxJob>() {
+                public MuxJob call() {
+                    Job job = shard.jobs.get(token);
+                    return job instanceof MuxJob ? (MuxJob)job : null;
+                }
+            });
+        }
+
+        public void addRoute(final MuxRoute route) {
+            final Shard shard = shardFor(route.token);
+            shard.post(new Runnable() {
+                public void run() { shard.addRoute(route); }
+            });
+        }
+
+        public void addJob(final Job job) {
+            final Shard shard = shardFor(job.getToken());
+            shard.post(new Runnable() {
+                public void run() { shard.addJob(job); }
+            });
+        }
+
+        public void completeJob(final Job job) {
+            final Shard shard = shardFor(job.getToken());
+            shard.post(new Runnable() {
+                public void run() { shard.completeJob(job); }
+            });
+        }
     }
-    final protected JobPool pool = new JobPool(threadPoolCore);
+    protected JobPool pool = null;  // started by init()
 
     // (req.getPathInfo() is apparently broken in various containers...)
     /** @return "/path-under-servlet" */
@@ -293,39 +1250,413 @@ public class GetFromPostServlet extends HttpServlet
     { StringBuffer baseURL = req.getRequestURL();
       baseURL.delete(baseURL.length()-getRelUri(req).length(), baseURL.length());
       return baseURL.toString(); }
+    /** @return what the TokenFactory sees of req */
+    protected static TokenRequest tokenRequest(final HttpServletRequest req)
+    { return new TokenRequest() {
+          public String getRemoteUser() { return req.getRemoteUser(); }
+          public String getParameter(String name)
+          { return req.getParameter(name); }
+      }; }
+
+    // Base URLs seen lately. Every GET keeps one, and nearly all of them are
+    // the same few, so they share a copy. Strings are immutable, so racing
+    // on a slot only ever costs a copy.
+    final protected String[] baseUrls = new String[16];
+    /** @return url, or an equal String which an earlier GET is using */
+    protected String sharedBaseUrl(String url) {
+        int i = url.hashCode() & (baseUrls.length - 1);
+        String s = baseUrls[i];
+        if (url.equals(s)) return s;
+        baseUrls[i] = url;
+        return url;
+    }
+
+    /** Picks the RequestHandler to answer a GET; eg. by its Accept header.
+     *  POSTs always go to requestHandler. */
+    protected RequestHandler handlerFor(HttpServletRequest req)
+    { return requestHandler; }
 
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
+        boolean traced = trace.enabled();
+        long began = traced ? System.nanoTime() : 0;
         if (!"HTTP/1.1".equals(req.getProtocol())) {
             // We absolutely require chunked encoding, which is only optional in
             // HTTP/1.0, so do the simplest check.
             resp.sendError(HttpServletResponse.SC_HTTP_VERSION_NOT_SUPPORTED);
             return;
         }
-        if (!requestHandler.validateReplyRequest(req, resp))
+        RequestHandler handler = handlerFor(req);
+        if (!handler.validateReplyRequest(req, resp))
             return;
 
-        TokenWithEndpoint tok = tokenFactory.mintToken(req);
+        AdmissionControl.Slot slot = pool.isSaturated() ? null :
+            admission.acquire(req.getRemoteUser(), maxParkedGets,
+                              maxParkedGetsPerUser);
+        if (slot == null) {
+            metrics.getRejects.increment();
+            sendRetryLater(resp);
+            return;
+        }
+        boolean mux = req.getParameter("mux") != null;
+        TokenRequest treq = tokenRequest(req);
+        boolean parked = false;
+        TokenWithEndpoint resumed = null, tok = null;
+        long mintTime = 0, startAsyncTime = 0;
+        try {
+            resumed = mux ? null : tokenFactory.resumeToken(treq);
+            if (resumed == null) {
+                long t = traced ? System.nanoTime() : 0;
+                tok = tokenFactory.mintToken(treq);
+                if (traced) mintTime = System.nanoTime() - t;
+                metrics.mints.increment();
+                events.record(EventLog.MINT, tok);
+            }
 
-        AsyncContext ac = req.startAsync(req, resp);
-        ac.setTimeout(0);
-        pool.addJob(new Job(ac, tok, pool, getBaseUrl(req)));
+            long t = traced ? System.nanoTime() : 0;
+            AsyncContext ac = req.startAsync(req, resp);
+            if (traced) startAsyncTime = System.nanoTime() - t;
+            ac.setTimeout(0);
+            String baseURL = sharedBaseUrl(getBaseUrl(req));
+            if (resumed != null) {
+                Job job = new Job(ac, resumed, pool, baseURL);
+                job.admitted = slot;
+                job.handler = handler;
+                if (pool.resumeJob(job)) {
+                    metrics.resumes.increment();
+                    parked = true;
+                    return;
+                }
+                // Expired or never ours: start again. resumeToken()
+                // promised mintToken() would take this request.
+                tok = tokenFactory.mintToken(treq);
+                metrics.mints.increment();
+                events.record(EventLog.MINT, tok);
+            }
+            Job job = mux ? new MuxJob(ac, tok, pool, baseURL) :
+                            new Job(ac, tok, pool, baseURL);
+            job.admitted = slot;
+            job.handler = handler;
+            pool.addJob(job);
+            parked = true;
+        } finally {
+            if (!parked)
+                admission.release(slot);
+            else if (traced)
+                trace.get(tok != null ? tok : resumed, mintTime,
+                          startAsyncTime, System.nanoTime() - began,
+                          tok == null);
+        }
+    }
+
+    // A 503 with a Retry-After, spread out so that a storm of rejected
+    // clients doesn't all come back at once
+    protected void sendRetryLater(HttpServletResponse resp) throws IOException
+    {
+        resp.setHeader("Retry-After", Integer.toString(retryAfter +
+            ThreadLocalRandom.current().nextInt(retryAfter + 1)));
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Mints a token on the multiplexed GET whose endpoint is the "stream"
+     * parameter, and answers with the new token's endpoint as text/plain.
+     * The stream must be the same user's, and parked on this node, since
+     * POSTs for tokens minted here are sent here. Nothing is minted until
+     * all that has been checked and the stream has room.
+     */
+    protected void mintOnStream(HttpServletRequest req,
+                                HttpServletResponse resp)
+        throws ServletException, IOException
+    {
+        String baseURL = getBaseUrl(req);
+        String stream = req.getParameter("stream");
+        if (stream.startsWith(baseURL))
+            stream = stream.substring(baseURL.length());
+        TokenWithEndpoint streamTok = tokenFactory.extractToken(stream);
+        if (streamTok == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!mayPostToScope(req, resp, streamTok.getEndpointScope()))
+            return;
+        if (peers != null && peers.isPeer(streamTok.getNode())) {
+            resp.sendError(SC_MISDIRECTED_REQUEST);
+            return;
+        }
+        MuxJob job = pool.findStream(streamTok);
+        if (job == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!job.reserve()) {
+            metrics.getRejects.increment();
+            sendRetryLater(resp);
+            return;
+        }
+        TokenWithEndpoint tok;
+        try {
+            tok = tokenFactory.mintToken(tokenRequest(req));
+        } catch (ServletException e) {
+            job.unreserve();
+            throw e;
+        }
+        metrics.mints.increment();
+        metrics.streamMints.increment();
+        events.record(EventLog.MINT, tok);
+        pool.addRoute(new MuxRoute(tok, job));
+        resp.setContentType("text/plain;charset=utf-8");
+        resp.getOutputStream().write((baseURL+tok.getEndpointToken()+"\r\n")
+                                     .getBytes(ByteTemplate.UTF8));
     }
 
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
-        TokenWithEndpoint tok = tokenFactory.extractToken(getRelUri(req));
-        if (tok == null) {
+        String relUri = getRelUri(req);
+        TokenWithEndpoint tok = tokenFactory.extractToken(relUri);
+        String scope = tok == null ? tokenFactory.extractScope(relUri) : null;
+        // Not for a token or scope POST, whose body getParameter() would
+        // swallow
+        if (tok == null && scope == null &&
+            req.getParameter("stream") != null) {
+            mintOnStream(req, resp);
+            return;
+        }
+        if (tok == null && scope == null) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
-        
-        boolean found = pool.sendResult(tok.token,
-                                        requestHandler.formatPostMessage());
-        if (!found) resp.setStatus(HttpServletResponse.SC_GONE);
+        if (scope != null && !mayPostToScope(req, resp, scope))
+            return;
+        if (req.getContentLengthLong() > maxPostBody) {
+            metrics.oversizePosts.increment();
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        AsyncContext ac = req.startAsync(req, resp);
+        ac.setTimeout(postTimeout);
+        PostReader reader = new PostReader(ac, tok, scope, relUri);
+        ac.addListener(reader);
+        req.getInputStream().setReadListener(reader);
+    }
+
+    /**
+     * A POST to a scope reaches all its GETs, and a scope's URL is easily
+     * guessed, unlike a token's endpoint, so it has to come from the scope's
+     * own user: one whose GETs would have tokens minted in that scope. So
+     * does minting on a stream, in the stream's scope.
+     * @return false if the request has been answered with an error
+     */
+    protected boolean mayPostToScope(HttpServletRequest req,
+                                     HttpServletResponse resp, String scope)
+        throws ServletException, IOException
+    {
+        // Scope URLs share a mapping with the endpoints, which are open to
+        // all, so the container won't have asked for credentials yet
+        if (req.getRemoteUser() == null && !req.authenticate(resp))
+            return false;
+        if (!scope.equals(tokenFactory.scopeFor(tokenRequest(req)))) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a POST's body as the container gets it, into pooled chunks (see
+     * Payload), so a slow sender never holds up a container thread; then
+     * delivers it, the bytes exactly as sent. The container calls the
+     * ReadListener methods one at a time; the timeout can come at any
+     * point, so ending the request is guarded by closed.
+     */
+    protected class PostReader implements ReadListener, AsyncListener {
+        final protected AsyncContext async;
+        final protected TokenWithEndpoint token;
+        final protected String scope;  // instead of a token
+        final protected String relUri;
+        final protected Payload body = new Payload();
+        final protected AtomicBoolean closed = new AtomicBoolean();
+        final protected long startedAt;  // only while tracing
+
+        PostReader(AsyncContext async_, TokenWithEndpoint token_,
+                   String scope_, String relUri_) {
+            async = async_;
+            token = token_;
+            scope = scope_;
+            relUri = relUri_;
+            startedAt = trace.enabled() ? System.nanoTime() : 0;
+        }
+
+        protected HttpServletResponse response()
+        { return (HttpServletResponse)async.getResponse(); }
+
+        public void onDataAvailable() throws IOException {
+            if (body.readFrom(async.getRequest().getInputStream(), maxPostBody))
+                return;
+            metrics.oversizePosts.increment();
+            fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        public void onAllDataRead() throws IOException {
+            if (!closed.compareAndSet(false, true)) return;
+            final long readAt = startedAt != 0 ? System.nanoTime() : 0;
+            CompletableFuture<Boolean> answer;
+            if (scope != null) {
+                answer = broadcast(scope, relUri, body);
+            } else if (peers != null && peers.isPeer(token.getNode())) {
+                answer = forward(token.getNode(), relUri, body);
+            } else {
+                respond(deliverLocally(token, body), null, readAt);
+                return;
+            }
+            // A peer's answer comes on one of its threads; answer the
+            // client from one of the container's
+            answer.whenComplete(new BiConsumer<Boolean,Throwable>() {
+                public void accept(final Boolean found, final Throwable t) {
+                    try {
+                        async.start(new Runnable() {
+                            public void run() { respond(found, t, readAt); }
+                        });
+                    } catch (IllegalStateException e) {
+                        // the container gave up on the request
+                        body.release();
+                    }
+                }
+            });
+        }
+
+        protected void respond(Boolean found, Throwable failure, long readAt) {
+            try {
+                if (failure != null) {
+                    response().sendError(HttpServletResponse.SC_BAD_GATEWAY);
+                    return;
+                }
+                if (readAt != 0)
+                    trace.post(relUri, readAt - startedAt,
+                               System.nanoTime() - readAt, body.length(), found);
+                if (!found)
+                    response().setStatus(HttpServletResponse.SC_GONE);
+                requestHandler.formatPostResult(response(), found);
+            } catch (IOException e) {
+                // the client has gone; the result was delivered anyway
+            } finally {
+                body.release();
+                try {
+                    async.complete();
+                } catch (IllegalStateException e) {
+                    // the container gave up on the request
+                }
+            }
+        }
+
+        // Ends the request without delivering anything
+        protected void fail(int status) {
+            if (!closed.compareAndSet(false, true)) return;
+            body.release();
+            try {
+                response().sendError(status);
+            } catch (IOException e) {
+                // the client is going anyway
+            } catch (IllegalStateException e) {
+                // already committed
+            }
+            async.complete();
+        }
+
+        // ReadListener method
+        public void onError(Throwable t)
+        { fail(HttpServletResponse.SC_BAD_REQUEST); }
+
+        // AsyncListener methods
+        public void onTimeout(AsyncEvent e)
+        { fail(HttpServletResponse.SC_REQUEST_TIMEOUT); }
+        public void onError(AsyncEvent e)
+        { fail(HttpServletResponse.SC_BAD_REQUEST); }
+        public void onComplete(AsyncEvent e) { }
+        public void onStartAsync(AsyncEvent e) { }
+    }
+
+    /**
+     * Hands a POST's body to every GET for scope, here and on all the peers
+     * at once. This is a POST to the scope URL itself (for
+     * PerUserTokenFactory, one user's), which only that scope's own user
+     * may make. Each shard indexes its jobs by scope, so it costs as much as
+     * the scope has GETs. A multiplexed GET takes no body this way, only its
+     * own tokens' POSTs.
+     * @return whether any GET took it, or an IOException if none did and
+     *         some peer couldn't be reached
+     */
+    protected CompletableFuture<Boolean> broadcast(String scope, String relUri,
+                                                   Payload body)
+    {
+        boolean here = deliverToScope(scope, body) > 0;
+        List<Integer> nodes = peers == null ? new ArrayList<Integer>() :
+                                              peers.peerNodes();
+        if (nodes.isEmpty()) return CompletableFuture.completedFuture(here);
+        final CompletableFuture<Boolean> all = new CompletableFuture<Boolean>();
+        final AtomicInteger left = new AtomicInteger(nodes.size());
+        final AtomicBoolean found = new AtomicBoolean(here);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        for (int node : nodes) {
+            forward(node, relUri, body).whenComplete(
+                    new BiConsumer<Boolean,Throwable>() {
+                public void accept(Boolean f, Throwable t) {
+                    if (t != null) failure.set(t);
+                    else if (f) found.set(true);
+                    if (left.decrementAndGet() > 0) return;
+                    if (!found.get() && failure.get() != null)
+                        all.completeExceptionally(failure.get());
+                    else
+                        all.complete(found.get());
+                }
+            });
+        }
+        return all;
+    }
+
+    /** Forwards a POST's body to the GET for it on node, counting how that
+     *  went. The caller keeps its own reference to body. */
+    protected CompletableFuture<Boolean> forward(int node, String relUri,
+                                                 Payload body)
+    {
+        CompletableFuture<Boolean> f = peers.forward(node, relUri, body);
+        f.whenComplete(new BiConsumer<Boolean,Throwable>() {
+            public void accept(Boolean found, Throwable t) {
+                if (t == null) metrics.forwardedPosts.increment();
+                else metrics.forwardFailures.increment();
+            }
+        });
+        return f;
+    }
+
+    /** Hands a POST's body to each GET waiting here for scope.
+     *  @return how many took it */
+    protected int deliverToScope(String scope, Payload body) {
+        int n = pool.sendToScope(scope, new Result(body, System.nanoTime()));
+        metrics.scopePosts.increment();
+        metrics.scopeDeliveries.add(n);
+        return n;
+    }
+
+    /**
+     * Ends every GET parked on this node for scope with a FAILED result;
+     * eg. when its user logs out, or is locked out. Takes as long as that
+     * user has GETs, however many others there are.
+     * @return how many there were
+     */
+    public int cancelScope(String scope) {
+        return pool.sendToScope(scope, CANCELLED);
+    }
 
-        requestHandler.formatPostResult(resp, found);
+    /** Hands a POST's body to the GET waiting here for tok, if any. */
+    protected boolean deliverLocally(TokenWithEndpoint tok, Payload body) {
+        boolean found = tok != null && pool.sendResult(tok, body);
+        if (found) metrics.postHits.increment();
+        else metrics.postMisses.increment();
+        return found;
     }
 }
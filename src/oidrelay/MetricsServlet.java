@@ -0,0 +1,61 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the metrics of every GetFromPostServlet in the webapp, in the
+ * Prometheus text format. Each relay servlet registers its RelayMetrics as a
+ * ServletContext attribute when it starts, so this servlet needs no
+ * configuration beyond its URL mapping.
+ */
+public class MetricsServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 6370381735014263470L;
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException, IOException
+    {
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding("UTF-8");
+        ServletContext ctx = getServletContext();
+        List<String> servlets = new ArrayList<String>();
+        List<RelayMetrics> metrics = new ArrayList<RelayMetrics>();
+        Enumeration<String> names = ctx.getAttributeNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            if (!name.startsWith(RelayMetrics.ATTRIBUTE_PREFIX)) continue;
+            Object m = ctx.getAttribute(name);
+            if (m instanceof RelayMetrics) {
+                servlets.add(name.substring(RelayMetrics.ATTRIBUTE_PREFIX.length()));
+                metrics.add((RelayMetrics)m);
+            }
+        }
+        RelayMetrics.writeAll(resp.getWriter(), servlets, metrics);
+    }
+}
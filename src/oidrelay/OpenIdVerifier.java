@@ -0,0 +1,490 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks OpenID 2.0 positive assertions (openid.mode=id_res), for when the
+ * relay verifies the logins it passes on rather than leaving it all to the
+ * Relying Party behind it. It sits beside PerUserTokenFactory: that scopes
+ * the POSTs, and this says whether one carries a genuine assertion.
+ *
+ * Doing it naively costs a discovery fetch and a Diffie-Hellman association
+ * with the OP on every login, so both are cached (see ExpiringCache):
+ *   - discovery results by claimed identifier, for discoveryTtl;
+ *   - associations by OP endpoint, until the OP says they expire or for
+ *     associationTtl, whichever is sooner.
+ * With a warm cache, checking an assertion is one HMAC and no round trips.
+ * An assertion signed with some other handle (the OP dropped ours, or used
+ * a private one) is checked with a direct check_authentication request.
+ *
+ * The signature has to cover op_endpoint, return_to, response_nonce,
+ * assoc_handle, claimed_id and identity, as the spec requires (sections 10.1
+ * and 11.4); otherwise someone could swap in an identity the OP never
+ * asserted. Checking the values of return_to and the nonce is left to the
+ * caller, since only it knows what it sent and what it has seen.
+ *
+ * Only HTTP(S) identifiers are discovered (Yadis, then HTML <link> tags);
+ * XRIs are not supported.
+ */
+class OpenIdVerifier {
+    static final String NS = "http://specs.openid.net/auth/2.0";
+    static final String SERVER_TYPE = NS+"/server";
+    static final String SIGNON_TYPE = NS+"/signon";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int MAX_BODY = 64*1024;
+    // What openid.signed must list; the second lot only if they're there
+    static final String[] MUST_SIGN =
+        { "op_endpoint", "return_to", "response_nonce", "assoc_handle" };
+    static final String[] MUST_SIGN_IF_PRESENT = { "claimed_id", "identity" };
+
+    // The default modulus and generator from the OpenID 2.0 spec, appendix B
+    static final BigInteger DH_P = new BigInteger(
+        "DCF93A0B883972EC0E19989AC5A2CE310E1D37717E8D9571BB7623731866E61E"+
+        "F75A2E27898B057F9891C2E27A639C3F29B60814581CD3B2CA3986D2683705577"+
+        "D45C2E7E52DC81C7A171876E5CEA74B1448BFDFAF18828EFD2519F14E45E382663"+
+        "4AF1949E5B535CC829A483B8A76223E5D490A257F05BDFF16F2FB22C583AB", 16);
+    static final BigInteger DH_G = BigInteger.valueOf(2);
+
+    /** Where to send a claimed identifier's assertions, from discovery. */
+    static final class Discovered {
+        final String opEndpoint;
+        final String localId;   // null unless the OP knows the user by another
+        Discovered(String opEndpoint_, String localId_)
+        { opEndpoint = opEndpoint_; localId = localId_; }
+    }
+
+    /** A shared secret with an OP; a null handle means the OP wouldn't
+     *  associate, so its assertions all need checking directly. */
+    static final class Association {
+        final String handle;
+        final String macAlgorithm;
+        final byte[] macKey;
+        final long lifetime;    // ms
+        Association(String handle_, String macAlgorithm_, byte[] macKey_,
+                    long lifetime_)
+        {
+            handle = handle_;
+            macAlgorithm = macAlgorithm_;
+            macKey = macKey_;
+            lifetime = lifetime_;
+        }
+    }
+
+    protected int timeout = 5000;  // ms, for each connect and read
+    final protected SecureRandom random = new SecureRandom();
+    final protected ExpiringCache<String,Discovered> discoveries;
+    final protected ExpiringCache<String,Association> associations;
+    final LongAdder directChecks = new LongAdder();
+
+    /**
+     * @param maxEntries how many identifiers, and how many OPs, to remember
+     * @param discoveryTtl how long a discovery result is trusted, in ms
+     * @param associationTtl the longest an association is used, in ms
+     */
+    OpenIdVerifier(int maxEntries, long discoveryTtl, long associationTtl) {
+        discoveries = new ExpiringCache<String,Discovered>(
+            new ExpiringCache.Loader<String,Discovered>() {
+                Discovered load(String id) throws IOException
+                { return discover(id); }
+            }, maxEntries, discoveryTtl);
+        associations = new ExpiringCache<String,Association>(
+            new ExpiringCache.Loader<String,Association>() {
+                Association load(String op) throws IOException
+                { return associate(op); }
+                long lifetime(Association a) { return a.lifetime; }
+            }, maxEntries, associationTtl);
+    }
+
+    OpenIdVerifier() { this(10000, 60*60*1000, 6*60*60*1000); }
+
+    /**
+     * Checks the signature on an assertion, and that the OP which made it
+     * speaks for the identifier it asserts.
+     * @param params the openid.* fields of the assertion, undecoded
+     * @return the verified claimed identifier, or null if the assertion is
+     *  not a valid positive one
+     * @throws IOException if an OP couldn't be reached to check
+     */
+    public String verify(Map<String,String> params) throws IOException {
+        if (!NS.equals(params.get("openid.ns")) ||
+            !"id_res".equals(params.get("openid.mode")))
+            return null;
+        String op = params.get("openid.op_endpoint");
+        String claimed = params.get("openid.claimed_id");
+        String identity = params.get("openid.identity");
+        if (op == null || claimed == null || identity == null ||
+            !signsEnough(params))
+            return null;
+
+        // The OP must be the one the identifier delegates to
+        Discovered d = discoveries.get(normalize(claimed));
+        if (!op.equals(d.opEndpoint) ||
+            !identity.equals(d.localId != null ? d.localId : claimed))
+            return null;
+
+        String handle = params.get("openid.assoc_handle");
+        Association a = associations.get(op);
+        boolean valid;
+        if (a.handle != null && a.handle.equals(handle)) {
+            valid = checkSignature(params, a);
+        } else {
+            Map<String,String> answer = checkDirectly(op, params);
+            valid = "true".equals(answer.get("is_valid"));
+            // Only the OP's own word can drop our association; the
+            // assertion's invalidate_handle is anyone's to forge
+            // (section 11.4.2.2)
+            String dropped = answer.get("invalidate_handle");
+            if (a.handle != null && a.handle.equals(dropped))
+                associations.invalidate(op, a);
+        }
+        return valid ? claimed : null;
+    }
+
+    /** Strips the fragment, and supplies a scheme if there isn't one. */
+    static String normalize(String id) {
+        int hash = id.indexOf('#');
+        if (hash >= 0) id = id.substring(0, hash);
+        if (!id.startsWith("http://") && !id.startsWith("https://"))
+            id = "http://"+id;
+        return id;
+    }
+
+    /** @return whether openid.signed lists every field it has to */
+    static boolean signsEnough(Map<String,String> params) {
+        String signed = params.get("openid.signed");
+        if (signed == null) return false;
+        List<String> fields = Arrays.asList(signed.split(","));
+        for (String f : MUST_SIGN)
+            if (!fields.contains(f)) return false;
+        for (String f : MUST_SIGN_IF_PRESENT)
+            if (params.containsKey("openid."+f) && !fields.contains(f))
+                return false;
+        return true;
+    }
+
+    // Checks openid.sig, which covers the fields in openid.signed
+    protected boolean checkSignature(Map<String,String> params, Association a)
+    {
+        String signed = params.get("openid.signed");
+        String sig = params.get("openid.sig");
+        if (signed == null || sig == null) return false;
+        StringBuilder kv = new StringBuilder();
+        for (String f : signed.split(",")) {
+            String v = params.get("openid."+f);
+            if (v == null) return false;
+            kv.append(f).append(':').append(v).append('\n');
+        }
+        try {
+            Mac mac = Mac.getInstance(a.macAlgorithm);
+            mac.init(new SecretKeySpec(a.macKey, a.macAlgorithm));
+            byte[] expected = mac.doFinal(kv.toString().getBytes(UTF8));
+            return MessageDigest.isEqual(expected,
+                                         Base64.getDecoder().decode(sig));
+        } catch (GeneralSecurityException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;  // sig wasn't base64
+        }
+    }
+
+    // Asks the OP itself whether it made the assertion; the answer has
+    // is_valid, and perhaps an invalidate_handle
+    protected Map<String,String> checkDirectly(String op,
+                                               Map<String,String> params)
+            throws IOException
+    {
+        directChecks.increment();
+        Map<String,String> req = new LinkedHashMap<String,String>(params);
+        req.put("openid.mode", "check_authentication");
+        return post(op, req);
+    }
+
+    /** Finds the OP endpoint for a claimed identifier. */
+    protected Discovered discover(String id) throws IOException {
+        HttpURLConnection c = open(id);
+        c.setRequestProperty("Accept",
+                             "application/xrds+xml, text/html;q=0.9");
+        String body = read(c);
+        String xrds = c.getHeaderField("X-XRDS-Location");
+        String type = c.getContentType();
+        if (xrds == null && (type == null || !type.startsWith("application/xrds+xml")))
+            xrds = metaXrdsLocation(body);
+        if (xrds != null && !xrds.equals(id)) {
+            c = open(xrds);
+            c.setRequestProperty("Accept", "application/xrds+xml");
+            body = read(c);
+            type = "application/xrds+xml";
+        }
+        Discovered d = (type != null && type.startsWith("application/xrds+xml"))
+                       ? fromXrds(body) : fromHtml(body);
+        if (d == null)
+            throw new IOException("No OpenID endpoint found for "+id);
+        return d;
+    }
+
+    static final Pattern SERVICE = Pattern.compile(
+        "<(?:\\w+:)?Service\\b[^>]*>(.*?)</(?:\\w+:)?Service>",
+        Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    static final Pattern TAG = Pattern.compile(
+        "<(?:\\w+:)?(Type|URI|LocalID)\\b[^>]*>\\s*([^<]*?)\\s*</",
+        Pattern.CASE_INSENSITIVE);
+    static final Pattern HEAD_TAG = Pattern.compile(
+        "<(link|meta)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    static final Pattern ATTR = Pattern.compile(
+        "([\\w-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+
+    // An OP identifier service wins over a claimed identifier one
+    protected static Discovered fromXrds(String xml) {
+        Discovered signon = null;
+        Matcher s = SERVICE.matcher(xml);
+        while (s.find()) {
+            boolean server = false, user = false;
+            String uri = null, localId = null;
+            Matcher t = TAG.matcher(s.group(1));
+            while (t.find()) {
+                String tag = t.group(1), v = unescape(t.group(2));
+                if (tag.equalsIgnoreCase("Type")) {
+                    server |= v.equals(SERVER_TYPE);
+                    user |= v.equals(SIGNON_TYPE);
+                } else if (tag.equalsIgnoreCase("URI")) {
+                    if (uri == null) uri = v;
+                } else {
+                    localId = v;
+                }
+            }
+            if (uri == null) continue;
+            if (server) return new Discovered(uri, null);
+            if (user && signon == null) signon = new Discovered(uri, localId);
+        }
+        return signon;
+    }
+
+    protected static Discovered fromHtml(String html) {
+        String op = null, localId = null;
+        for (Map<String,String> a : tags(html, "link")) {
+            String rel = a.get("rel"), href = a.get("href");
+            if (rel == null || href == null) continue;
+            for (String r : rel.split("\\s+")) {
+                if (r.equals("openid2.provider")) op = href;
+                else if (r.equals("openid2.local_id")) localId = href;
+            }
+        }
+        return op == null ? null : new Discovered(op, localId);
+    }
+
+    protected static String metaXrdsLocation(String html) {
+        for (Map<String,String> a : tags(html, "meta"))
+            if ("x-xrds-location".equalsIgnoreCase(a.get("http-equiv")))
+                return a.get("content");
+        return null;
+    }
+
+    // The attributes of each <name ...> tag, with lower-case names
+    protected static Iterable<Map<String,String>> tags(String html, String name)
+    {
+        ArrayList<Map<String,String>> l = new ArrayList<Map<String,String>>();
+        Matcher m = HEAD_TAG.matcher(html);
+        while (m.find()) {
+            if (!m.group(1).equalsIgnoreCase(name)) continue;
+            Map<String,String> a = new HashMap<String,String>();
+            Matcher at = ATTR.matcher(m.group(2));
+            while (at.find())
+                a.put(at.group(1).toLowerCase(), unescape(
+                          at.group(2) != null ? at.group(2) : at.group(3)));
+            l.add(a);
+        }
+        return l;
+    }
+
+    protected static String unescape(String s) {
+        if (s.indexOf('&') < 0) return s;
+        return s.replace("&lt;", "<").replace("&gt;", ">")
+                .replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&#39;", "'").replace("&amp;", "&");
+    }
+
+    /**
+     * Sets up a shared MAC key with an OP by Diffie-Hellman, falling back to
+     * SHA-1 if the OP asks for it. An OP which won't associate at all gets
+     * an Association with no handle, cached like any other so we don't
+     * keep asking.
+     */
+    protected Association associate(String op) throws IOException {
+        String assocType = "HMAC-SHA256", sessionType = "DH-SHA256";
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            BigInteger x = new BigInteger(DH_P.bitLength() - 1, random)
+                               .add(BigInteger.ONE);
+            Map<String,String> req = new LinkedHashMap<String,String>();
+            req.put("openid.ns", NS);
+            req.put("openid.mode", "associate");
+            req.put("openid.assoc_type", assocType);
+            req.put("openid.session_type", sessionType);
+            req.put("openid.dh_consumer_public",
+                    base64(DH_G.modPow(x, DH_P).toByteArray()));
+            Map<String,String> resp = post(op, req);
+
+            if ("unsupported-type".equals(resp.get("error_code"))) {
+                String a = resp.get("assoc_type"), s = resp.get("session_type");
+                if (macAlgorithm(a) != null && digest(s) != null) {
+                    assocType = a;
+                    sessionType = s;
+                    continue;
+                }
+            }
+            String handle = resp.get("assoc_handle");
+            String serverPublic = resp.get("dh_server_public");
+            String encKey = resp.get("enc_mac_key");
+            if (handle == null || serverPublic == null || encKey == null)
+                break;
+            try {
+                BigInteger shared = new BigInteger(1, base64(serverPublic))
+                                        .modPow(x, DH_P);
+                byte[] h = MessageDigest.getInstance(digest(sessionType))
+                               .digest(shared.toByteArray());
+                byte[] key = base64(encKey);
+                if (key.length != h.length)
+                    throw new IOException("Bad enc_mac_key from "+op);
+                for (int i = 0; i < key.length; ++i) key[i] ^= h[i];
+                long life = 1000*Long.parseLong(resp.get("expires_in").trim());
+                return new Association(handle, macAlgorithm(assocType), key,
+                                       life);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            } catch (RuntimeException e) {  // bad base64 or expires_in
+                throw new IOException("Bad association response from "+op, e);
+            }
+        }
+        return new Association(null, null, null, Long.MAX_VALUE);
+    }
+
+    protected static String macAlgorithm(String assocType) {
+        if ("HMAC-SHA256".equals(assocType)) return "HmacSHA256";
+        if ("HMAC-SHA1".equals(assocType)) return "HmacSHA1";
+        return null;
+    }
+
+    protected static String digest(String sessionType) {
+        if ("DH-SHA256".equals(sessionType)) return "SHA-256";
+        if ("DH-SHA1".equals(sessionType)) return "SHA-1";
+        return null;
+    }
+
+    protected static String base64(byte[] b)
+    { return Base64.getEncoder().encodeToString(b); }
+    protected static byte[] base64(String s)
+    { return Base64.getDecoder().decode(s.trim()); }
+
+    protected HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)new URL(url).openConnection();
+        c.setConnectTimeout(timeout);
+        c.setReadTimeout(timeout);
+        return c;
+    }
+
+    // POSTs a form to an OP, and parses its key-value form reply
+    protected Map<String,String> post(String url, Map<String,String> form)
+            throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,String> e : form.entrySet()) {
+            if (sb.length() > 0) sb.append('&');
+            sb.append(encode(e.getKey())).append('=')
+              .append(encode(e.getValue()));
+        }
+        HttpURLConnection c = open(url);
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setRequestProperty("Content-Type",
+                             "application/x-www-form-urlencoded");
+        OutputStream out = c.getOutputStream();
+        try {
+            out.write(sb.toString().getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        // Errors come back as 400s with a key-value body
+        Map<String,String> kv = new HashMap<String,String>();
+        for (String line : read(c).split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                kv.put(line.substring(0, colon), line.substring(colon + 1));
+        }
+        return kv;
+    }
+
+    protected static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Reads the response body, or the error body, up to MAX_BODY bytes
+    protected static String read(HttpURLConnection c) throws IOException {
+        InputStream in = c.getResponseCode() >= 400 ? c.getErrorStream()
+                                                    : c.getInputStream();
+        if (in == null) return "";
+        try {
+            byte[] buf = new byte[4096];
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                b.write(buf, 0, n);
+                if (b.size() > MAX_BODY)
+                    throw new IOException("Response too long from "+c.getURL());
+            }
+            return new String(b.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "discovery: "+discoveries+"; associations: "+associations+
+               "; direct checks="+directChecks.sum();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletInputStream;
+
+/**
+ * The body of a POST, on its way to the GET waiting for it. The bytes are
+ * kept as they came, in fixed-size chunks from a shared pool, and written
+ * out from there; they are never decoded into a String.
+ *
+ * A Payload can be held in several places at once (a Job's result, the
+ * mailbox, a peer's outgoing queue), so it is reference counted: whoever
+ * keeps it calls retain(), and release() when done, and the last release
+ * returns the chunks to the pool. A missed release() costs nothing worse than
+ * the chunks going to the garbage collector instead.
+ */
+class Payload {
+    static final int CHUNK = 4096;
+    static final int MAX_POOLED = 4096;  // chunks, ie. 16MB
+    static final ConcurrentLinkedQueue<byte[]> free =
+        new ConcurrentLinkedQueue<byte[]>();
+    static final AtomicInteger freeCount = new AtomicInteger();
+
+    protected byte[][] chunks = new byte[2][];
+    protected int nChunks = 0;
+    protected int length = 0;
+    final protected boolean pooled;
+    final protected AtomicInteger refs = new AtomicInteger(1);
+
+    /** An empty payload, with one reference, to be filled from the pool. */
+    Payload() { pooled = true; }
+
+    protected Payload(byte[] b) {
+        pooled = false;
+        chunks[0] = b;
+        nChunks = 1;
+        length = b.length;
+    }
+
+    /** A payload of b itself, which never goes near the pool. */
+    public static Payload wrap(byte[] b) { return new Payload(b); }
+
+    public int length() { return length; }
+    public int chunkCount() { return nChunks; }
+    public byte[] chunk(int i) { return chunks[i]; }
+    public int chunkLength(int i)
+    { return i < nChunks - 1 ? CHUNK : length - (nChunks - 1)*CHUNK; }
+
+    public Payload retain() { refs.incrementAndGet(); return this; }
+
+    /** Takes a reference unless the payload has already been released for
+     *  good, which a holder who might be racing the last release can't
+     *  rule out. */
+    public boolean tryRetain() {
+        while (true) {
+            int n = refs.get();
+            if (n <= 0) return false;
+            if (refs.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() != 0 || !pooled) return;
+        for (int i = 0; i < nChunks; ++i) {
+            if (freeCount.incrementAndGet() > MAX_POOLED) {
+                freeCount.decrementAndGet();
+                break;
+            }
+            free.offer(chunks[i]);
+            chunks[i] = null;
+        }
+        nChunks = 0;
+        length = 0;
+    }
+
+    // The space left in the last chunk, adding a chunk if it's full
+    protected int room() {
+        int used = length - (nChunks - 1)*CHUNK;
+        if (nChunks > 0 && used < CHUNK) return CHUNK - used;
+        if (nChunks == chunks.length)
+            chunks = Arrays.copyOf(chunks, nChunks*2);
+        byte[] c = free.poll();
+        if (c != null) freeCount.decrementAndGet();
+        else c = new byte[CHUNK];
+        chunks[nChunks++] = c;
+        return CHUNK;
+    }
+
+    protected byte[] tail() { return chunks[nChunks - 1]; }
+    protected int tailUsed() { return length - (nChunks - 1)*CHUNK; }
+
+    /**
+     * Reads whatever in has ready, without blocking.
+     * @return false if that took the payload past limit bytes
+     */
+    public boolean readFrom(ServletInputStream in, int limit)
+            throws IOException
+    {
+        while (in.isReady()) {
+            int room = room();
+            int n = in.read(tail(), tailUsed(), room);
+            if (n < 0) break;
+            length += n;
+            if (length > limit) return false;
+        }
+        return true;
+    }
+
+    /** Reads exactly n bytes, blocking. */
+    public void readFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int k = Math.min(n, room());
+            in.readFully(tail(), tailUsed(), k);
+            length += k;
+            n -= k;
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < nChunks; ++i)
+            out.write(chunks[i], 0, chunkLength(i));
+    }
+
+    /** A copy of the bytes, for an API which wants them in one buffer. */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        for (int i = 0; i < nChunks; ++i)
+            b.put(chunks[i], 0, chunkLength(i));
+        b.flip();
+        return b;
+    }
+}
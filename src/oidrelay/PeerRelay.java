@@ -0,0 +1,453 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries POSTs between the nodes of a relay cluster. Behind a load balancer
+ * the POST for a token often arrives at a different node from the one holding
+ * its GET; tokens name the node which minted them, and the node receiving the
+ * POST forwards it here to that node, which delivers it to its own JobPool and
+ * answers whether the GET was found. The owner never forwards again, so a
+ * delivery is at most one hop.
+ *
+ * Each node keeps one persistent TCP connection to each peer it has sent to,
+ * opened on first use and again after a failure. Requests and responses are
+ * framed with DataOutputStream, and each connection's writer thread sends
+ * everything queued since it last woke before flushing, so a burst of POSTs
+ * becomes a few large writes rather than one each. Forwarding never waits:
+ * the writer thread does the connecting, and the answer (or the timeout)
+ * completes a future.
+ *
+ * The peer protocol has no authentication: a forwarded POST can do no more
+ * than the POST itself could, but it does skip any filters in front of the
+ * servlet, so the peer port belongs on a private network.
+ */
+class PeerRelay {
+    /** Delivers a forwarded POST on the owning node. */
+    interface Delivery {
+        /** @return whether a GET was waiting for it */
+        boolean deliver(String relUri, Payload body);
+    }
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int MAGIC = 0x6f726c31;  // "orl1"
+    static final int REQUEST = 1, RESPONSE = 2;
+    static final int MAX_STRING = 1 << 20;
+
+    final protected int node;
+    final protected Map<Integer,InetSocketAddress> peers;
+    final protected Delivery delivery;
+    final protected Executor deliverer;
+    final protected int timeout;
+    final protected EventLog events;
+    final protected ConcurrentHashMap<Integer,Channel> outbound =
+        new ConcurrentHashMap<Integer,Channel>();
+    final protected AtomicInteger nextId = new AtomicInteger();
+    // Fails forwards which get no answer in time
+    final protected ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "oidrelay-peer-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    protected ServerSocket server = null;
+    protected volatile boolean closed = false;
+
+    /**
+     * @param peers_ every node in the cluster, including this one
+     * @param deliverer_ runs deliveries, so that a slow one doesn't hold up
+     *        the frames behind it
+     * @param timeout_ milliseconds to wait for a peer to answer
+     * @param events_ where to report lost peer connections
+     */
+    PeerRelay(int node_, Map<Integer,InetSocketAddress> peers_,
+              Delivery delivery_, Executor deliverer_, int timeout_,
+              EventLog events_) {
+        node = node_;
+        peers = peers_;
+        delivery = delivery_;
+        deliverer = deliverer_;
+        timeout = timeout_;
+        events = events_;
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Parses "0=host:port,1=host:port,...". */
+    public static Map<Integer,InetSocketAddress> parsePeers(String spec) {
+        Map<Integer,InetSocketAddress> m = new HashMap<Integer,InetSocketAddress>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int eq = entry.indexOf('='), colon = entry.lastIndexOf(':');
+            if (eq <= 0 || colon < eq)
+                throw new IllegalArgumentException("Bad peer "+entry);
+            m.put(Integer.parseInt(entry.substring(0, eq)),
+                  new InetSocketAddress(entry.substring(eq + 1, colon),
+                        Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return m;
+    }
+
+    /** @return whether tokens of that node should be forwarded to it */
+    public boolean isPeer(int n) { return n != node && peers.containsKey(n); }
+
+    /** @return every other node, for a POST which all of them should see */
+    public List<Integer> peerNodes() {
+        ArrayList<Integer> nodes = new ArrayList<Integer>(peers.keySet());
+        nodes.remove(Integer.valueOf(node));
+        return nodes;
+    }
+
+    /** Listens for peers on this node's own address from the peer list,
+     *  and only that address. */
+    public void start() throws IOException {
+        InetSocketAddress self = peers.get(node);
+        if (self == null)
+            throw new IOException("Node "+node+" is not in the peer list");
+        if (self.isUnresolved())
+            throw new IOException("Can't resolve node "+node+"'s address "+
+                                  self.getHostString());
+        server = new ServerSocket();
+        server.bind(self);
+        Thread t = new Thread("oidrelay-peer-accept") {
+            public void run() {
+                while (!closed) {
+                    try {
+                        Socket s = server.accept();
+                        new Channel(s, -1).start();
+                    } catch (IOException e) {
+                        if (!closed) events.error("peer-accept", e);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) server.close();
+        } catch (IOException e) {
+            // nothing more we can do
+        }
+        for (Channel c : outbound.values()) c.fail(null);
+        timer.shutdownNow();
+    }
+
+    /**
+     * Forwards a POST to the node which owns its token, without waiting.
+     * The body is held until it has been written (or abandoned).
+     * @return whether the owner had a GET waiting, or an IOException if the
+     *         owner couldn't be reached in time
+     */
+    public CompletableFuture<Boolean> forward(final int owner, String relUri,
+                                              Payload body)
+    {
+        final Frame f = new Frame(REQUEST, nextId.incrementAndGet());
+        f.relUri = relUri;
+        f.reply = new CompletableFuture<Boolean>();
+        final Channel c;
+        try {
+            c = channelTo(owner);
+        } catch (IOException e) {
+            f.reply.completeExceptionally(e);
+            return f.reply;
+        }
+        f.body = body.retain();  // until the writer is done with it
+        // Waiting before the timer can look for it
+        c.waiting.put(f.id, f);
+        try {
+            f.timer = timer.schedule(new Runnable() {
+                public void run() {
+                    // If it's still queued, it goes when its turn comes,
+                    // but nobody waits for the answer
+                    if (c.waiting.remove(f.id, f))
+                        f.reply.completeExceptionally(
+                            new IOException("Node "+owner+" did not answer"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            c.waiting.remove(f.id, f);
+            f.body.release();
+            f.reply.completeExceptionally(new IOException("Relay closed"));
+            return f.reply;
+        }
+        c.send(f);
+        return f.reply;
+    }
+
+    protected Channel channelTo(int owner) throws IOException {
+        Channel c = outbound.get(owner);
+        if (c != null && !c.dead) return c;
+        synchronized (outbound) {
+            c = outbound.get(owner);
+            if (c != null && !c.dead) return c;
+            if (closed) throw new IOException("Relay closed");
+            c = new Channel(new Socket(), owner);
+            c.start();
+            outbound.put(owner, c);
+            return c;
+        }
+    }
+
+    static final class Frame {
+        final int type, id;
+        String relUri;
+        Payload body;
+        boolean found;
+        CompletableFuture<Boolean> reply;
+        ScheduledFuture<?> timer;
+        Frame(int type_, int id_) { type = type_; id = id_; }
+
+        /** Gives up on the frame, which never went out. */
+        void abandon(IOException why) {
+            if (body != null) body.release();
+            if (timer != null) timer.cancel(false);
+            if (reply != null) reply.completeExceptionally(why);
+        }
+    }
+
+    /**
+     * One connection to a peer, in either direction. Requests go out on the
+     * connections we opened and come in on the ones peers opened; the
+     * answers go back the way the request came. Whoever takes a request off
+     * the queue, the writer or fail(), releases its body.
+     */
+    protected class Channel {
+        final protected Socket socket;
+        final protected int peer;  // -1 if the peer connected to us
+        protected DataInputStream in;    // set before the reader starts
+        protected DataOutputStream out;  // only touched by the writer
+        final protected ConcurrentLinkedQueue<Frame> queue =
+            new ConcurrentLinkedQueue<Frame>();
+        final protected ConcurrentHashMap<Integer,Frame> waiting =
+            new ConcurrentHashMap<Integer,Frame>();
+        protected Thread reader, writer;
+        protected volatile boolean dead = false;
+
+        /** @param socket_ connected if the peer connected to us; otherwise
+         *  the writer connects it to peer_ */
+        Channel(Socket socket_, int peer_) {
+            socket = socket_;
+            peer = peer_;
+        }
+
+        void start() {
+            String name = "oidrelay-peer-"+(peer < 0 ? "in" : "out-"+peer);
+            reader = new Thread(name+"-reader") {
+                public void run() { readLoop(); }
+            };
+            writer = new Thread(name+"-writer") {
+                public void run() { writeLoop(); }
+            };
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Called by the writer before anything else
+        protected void open() throws IOException {
+            if (peer >= 0) socket.connect(peers.get(peer), timeout);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(
+                     new BufferedInputStream(socket.getInputStream(), 8192));
+            out = new DataOutputStream(
+                      new BufferedOutputStream(socket.getOutputStream(), 8192));
+            reader.start();
+        }
+
+        /** Queues f, which is already waiting if it wants an answer; if the
+         *  connection has gone, fails it instead. */
+        void send(Frame f) {
+            queue.offer(f);
+            LockSupport.unpark(writer);
+            if (dead && queue.remove(f)) {
+                waiting.remove(f.id, f);
+                f.abandon(new IOException("Connection to peer lost"));
+            }
+        }
+
+        protected void writeLoop() {
+            try {
+                open();
+                if (peer >= 0) out.writeInt(MAGIC);
+                while (!dead) {
+                    Frame f;
+                    boolean wrote = false;
+                    while ((f = queue.poll()) != null) {
+                        write(f);
+                        wrote = true;
+                    }
+                    // One flush per batch
+                    if (wrote) out.flush();
+                    else LockSupport.park(this);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        protected void write(Frame f) throws IOException {
+            out.writeByte(f.type);
+            out.writeInt(f.id);
+            if (f.type == REQUEST) {
+                try {
+                    writeString(f.relUri);
+                    out.writeInt(f.body.length());
+                    f.body.writeTo(out);
+                } finally {
+                    f.body.release();
+                }
+            } else {
+                out.writeBoolean(f.found);
+            }
+        }
+
+        protected void readLoop() {
+            try {
+                if (peer < 0 && in.readInt() != MAGIC)
+                    throw new IOException("Not a relay peer");
+                while (!dead) {
+                    int type = in.readUnsignedByte();
+                    int id = in.readInt();
+                    if (type == REQUEST) {
+                        String relUri = readString();
+                        int n = in.readInt();
+                        if (n < 0 || n > MAX_STRING)
+                            throw new IOException("Bad body length "+n);
+                        Payload body = new Payload();
+                        try {
+                            body.readFully(in, n);
+                        } catch (IOException e) {
+                            body.release();
+                            throw e;
+                        }
+                        deliver(new Frame(RESPONSE, id), relUri, body);
+                    } else if (type == RESPONSE) {
+                        Frame f = waiting.remove(id);
+                        boolean found = in.readBoolean();
+                        if (f != null) {
+                            if (f.timer != null) f.timer.cancel(false);
+                            f.reply.complete(found);
+                        }
+                    } else {
+                        throw new IOException("Bad frame type "+type);
+                    }
+                }
+            } catch (EOFException e) {
+                fail(null);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // Answers r once the delivery's done, which releases body. On the
+        // pool if it will take it; otherwise here, holding up the frames
+        // behind it until the pool catches up
+        protected void deliver(final Frame r, final String relUri,
+                               final Payload body) {
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        r.found = delivery.deliver(relUri, body);
+                    } finally {
+                        body.release();
+                        send(r);
+                    }
+                }
+            };
+            try {
+                deliverer.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        protected void writeString(String s) throws IOException {
+            byte[] b = s.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        protected String readString() throws IOException {
+            int n = in.readInt();
+            if (n < 0 || n > MAX_STRING)
+                throw new IOException("Bad string length "+n);
+            byte[] b = new byte[n];
+            in.readFully(b);
+            return new String(b, UTF8);
+        }
+
+        /** Drops the connection; anyone waiting on it gets an error. */
+        synchronized void fail(IOException e) {
+            if (dead) return;
+            dead = true;
+            if (peer >= 0) outbound.remove(peer, this);
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                // closing anyway
+            }
+            LockSupport.unpark(writer);
+            IOException cause = e != null ? e :
+                new IOException("Connection to peer closed");
+            Frame f;
+            while ((f = queue.poll()) != null) {
+                if (f.reply != null) waiting.remove(f.id, f);
+                f.abandon(cause);
+            }
+            // Sent, but not answered
+            for (Frame w : waiting.values()) {
+                if (w.timer != null) w.timer.cancel(false);
+                w.reply.completeExceptionally(cause);
+            }
+            waiting.clear();
+            if (e != null && !closed) events.error("peer-"+peer, e);
+        }
+    }
+}
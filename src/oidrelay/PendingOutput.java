@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Output which a RequestHandler has produced but which hasn't gone to the
+ * client yet. The handlers are given a response whose output stream appends
+ * here, which never blocks; the owning Job then hands the bytes to the real
+ * (non-blocking) output stream whenever the container says it is ready.
+ *
+ * There is no buffer at all while nothing is pending, which is most of the
+ * time for a parked GET.
+ *
+ * Not thread-safe: the owning Job guards it.
+ */
+class PendingOutput extends ServletOutputStream {
+    protected byte[] buf = null;
+    protected int count = 0;
+
+    PendingOutput() { }
+
+    public int size() { return count; }
+
+    /** A view of resp whose output stream is this buffer. It is still an
+     *  HttpServletResponse if resp was, so handlers can set headers. */
+    public ServletResponse wrap(ServletResponse resp) {
+        if (resp instanceof HttpServletResponse)
+            return new HttpServletResponseWrapper((HttpServletResponse)resp) {
+                public ServletOutputStream getOutputStream() {
+                    return PendingOutput.this;
+                }
+                public void flushBuffer() { }
+            };
+        return new ServletResponseWrapper(resp) {
+            public ServletOutputStream getOutputStream() {
+                return PendingOutput.this;
+            }
+            public void flushBuffer() { }
+        };
+    }
+
+    /**
+     * Hands everything buffered so far to out. The container may hang on to
+     * the array until the write completes, so we let go of it rather than
+     * reusing it; the next write allocates another.
+     */
+    public void writeTo(ServletOutputStream out) throws IOException {
+        byte[] b = buf;
+        int n = count;
+        buf = null;
+        count = 0;
+        if (n > 0) out.write(b, 0, n);
+    }
+
+    protected void ensure(int extra) {
+        if (buf == null)
+            buf = new byte[Math.max(256, extra)];
+        else if (count + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length*2, count + extra));
+    }
+
+    public void write(int b) {
+        ensure(1);
+        buf[count++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    // The buffer is always writable; it's the real stream that isn't.
+    public boolean isReady() { return true; }
+    public void setWriteListener(WriteListener l)
+    { throw new IllegalStateException("PendingOutput is not a real stream"); }
+}
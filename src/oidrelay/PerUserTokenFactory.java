@@ -18,12 +18,10 @@ SOFTWARE.
 */
 package oidrelay;
 import oidrelay.GetFromPostServlet.TokenFactory;
+import oidrelay.GetFromPostServlet.TokenRequest;
 import oidrelay.GetFromPostServlet.TokenWithEndpoint;
 
-import java.util.Random;
-import javax.xml.bind.DatatypeConverter;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
 
 /**
  * Our version of the TokenFactory scopes requests by user id. Each GET
@@ -34,11 +32,16 @@ import javax.servlet.http.HttpServletRequest;
  * The idea is that a user might authenticate a web-service to POST data to
  * sub-URLs of the scoped endpoint, happy in the knowledge that the data sent
  * by the web service will only ever be disclosed to pending GET requests that
- * were authenticated to receive that per-user data.
+ * were authenticated to receive that per-user data. A POST to the scoped
+ * endpoint itself goes to every one of the user's pending GETs.
  */
 class PerUserTokenFactory implements TokenFactory {
     public static final int idLen = 16;
+    static final String returnPrefix = "return-for-";
     private String urlToMap;
+    private int node = -1;
+    static final long NODE_SET = 1L << 63;
+    static final int MAX_NODE = 0x7fff;
     public PerUserTokenFactory(String urlToMap_)
     {
         urlToMap = urlToMap_;
@@ -46,7 +49,59 @@ class PerUserTokenFactory implements TokenFactory {
         if (!urlToMap.startsWith("/")) urlToMap = "/"+urlToMap;
     }
 
-    public TokenWithEndpoint mintToken(HttpServletRequest req)
+    /**
+     * Has minted ids carry the node id in their top 16 bits, for a relay
+     * running on several nodes (see PeerRelay): a flag saying there is one,
+     * then 15 bits of node. That leaves 112 random bits. Without a node the
+     * flag is clear, leaving 127.
+     */
+    public void setNode(int node_) {
+        if (node_ < 0 || node_ > MAX_NODE)
+            throw new IllegalArgumentException("Bad node id "+node_);
+        node = node_;
+    }
+
+    /**
+     * The id is held as two longs, which is all that is compared or hashed;
+     * the strings are only built if someone asks for them, and not kept,
+     * since the token lives as long as its GET is parked.
+     */
+    static class PerUserToken extends TokenWithEndpoint {
+        final String urlToMap;
+        final String user;
+        final long idHi, idLo;
+        PerUserToken(String urlToMap_, String user_, long idHi_, long idLo_) {
+            urlToMap = urlToMap_;
+            user = user_;
+            idHi = idHi_;
+            idLo = idLo_;
+        }
+        public String getUser() { return user; }
+        public int getNode()
+        { return (idHi & NODE_SET) == 0 ? -1 : (int)(idHi >>> 48) & MAX_NODE; }
+        protected String hexId() {
+            StringBuilder sb = new StringBuilder(idLen*2);
+            TokenCodec.appendHex(sb, idHi);
+            TokenCodec.appendHex(sb, idLo);
+            return sb.toString();
+        }
+        public String getToken() { return user+"/"+hexId(); }
+        public String getEndpointToken()
+        { return urlToMap+user+"/"+returnPrefix+hexId(); }
+        public String getEndpointScope() { return urlToMap+user+"/"; }
+        // Only ever equal to another PerUserToken, so that the hash can be
+        // the id's rather than the token string's
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PerUserToken)) return false;
+            PerUserToken t = (PerUserToken)o;
+            return idLo == t.idLo && idHi == t.idHi && user.equals(t.user);
+        }
+        @Override
+        public int hashCode() { return (int)(idLo ^ (idLo >>> 32)); }
+    }
+
+    public TokenWithEndpoint mintToken(TokenRequest req)
     throws ServletException
     {
         // Enforce the fact that URL mappings are set up so that API calls can
@@ -55,47 +110,67 @@ class PerUserTokenFactory implements TokenFactory {
             throw new ServletException("User must be authenticated");
 
         String user = req.getRemoteUser();
+        long idHi = TokenCodec.randomLong() & ~NODE_SET;
+        if (node >= 0)
+            idHi = NODE_SET | ((long)node << 48) | (idHi & 0xffffffffffffL);
+        return new PerUserToken(urlToMap, user, idHi, TokenCodec.randomLong());
+    }
 
-        byte[] id = new byte[idLen];
-        new Random().nextBytes(id);
-        StringBuilder sb = new StringBuilder();
-        for (byte b : id) sb.append(String.format("%02x", b));
-        String strId = sb.toString();
+    public String scopeFor(TokenRequest req)
+    {
+        String user = req.getRemoteUser();
+        return user == null ? null : urlToMap+user+"/";
+    }
 
-        return new TokenWithEndpoint(user+"/"+strId,
-                                     urlToMap+user+"/return-for-"+strId,
-                                     urlToMap+user+"/");
+    /**
+     * A GET resumes a token by passing its endpoint (or just the hex id) as
+     * the "resume" parameter. The user comes from the GET's authentication,
+     * not the parameter, so nobody can pick up another user's token.
+     */
+    public TokenWithEndpoint resumeToken(TokenRequest req)
+    {
+        String user = req.getRemoteUser();
+        String v = req.getParameter("resume");
+        if (user == null || v == null)
+            return null;
+        int i = v.lastIndexOf(returnPrefix);
+        int idStart = i < 0 ? 0 : i + returnPrefix.length();
+        if (v.length() != idStart + idLen*2 ||
+            !TokenCodec.isHex(v, idStart, idLen*2))
+            return null;
+        return new PerUserToken(urlToMap, user,
+                                TokenCodec.parseHex(v, idStart),
+                                TokenCodec.parseHex(v, idStart + 16));
     }
 
+    /** Expects exactly urlToMap+user+"/return-for-"+hex, in one pass. */
     public TokenWithEndpoint extractToken(String reqURI)
     {
-        String user = null;
-        String idStr = null;
-        byte[] id = null;
-        if (reqURI != null) {
-            String[] parts = reqURI.split("/");
-            String[] mapParts = urlToMap.split("/");
-            if (parts.length == 3 + (mapParts.length-1) &&
-                "".equals(parts[0]) && reqURI.startsWith(urlToMap))
-            {
-                user = parts[parts.length-2];
-                idStr = parts[parts.length-1];
-                if (idStr.startsWith("return-for-")) {
-                    idStr = idStr.substring("return-for-".length(),
-                                            idStr.length());
-                    try {
-                        id = DatatypeConverter.parseHexBinary(idStr);
-                        if (id.length != idLen)
-                            id = null;
-                    } catch (IllegalArgumentException e) { }
-                }
-            }
-        }
-        if (user == null || id == null) {
+        if (reqURI == null || !reqURI.startsWith(urlToMap))
             return null;
-        }
-        return new TokenWithEndpoint(user+"/"+idStr,
-                                     urlToMap+user+"/return-for-"+idStr,
-                                     urlToMap+user+"/");
+        int userStart = urlToMap.length();
+        int userEnd = reqURI.indexOf('/', userStart);
+        if (userEnd <= userStart)
+            return null;
+        int idStart = userEnd + 1 + returnPrefix.length();
+        if (!reqURI.startsWith(returnPrefix, userEnd + 1) ||
+            reqURI.length() != idStart + idLen*2 ||
+            !TokenCodec.isHex(reqURI, idStart, idLen*2))
+            return null;
+        return new PerUserToken(urlToMap, reqURI.substring(userStart, userEnd),
+                                TokenCodec.parseHex(reqURI, idStart),
+                                TokenCodec.parseHex(reqURI, idStart + 16));
+    }
+
+    /** Expects exactly urlToMap+user+"/". */
+    public String extractScope(String reqURI)
+    {
+        if (reqURI == null || !reqURI.startsWith(urlToMap))
+            return null;
+        int userStart = urlToMap.length();
+        int userEnd = reqURI.indexOf('/', userStart);
+        if (userEnd <= userStart || userEnd != reqURI.length() - 1)
+            return null;
+        return reqURI;
     }
 }
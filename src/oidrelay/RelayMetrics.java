@@ -0,0 +1,194 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and histograms for one GetFromPostServlet. Recording is a
+ * LongAdder or AtomicLongArray increment, so the hot paths never take a lock
+ * for it; the cost of adding things up falls on whoever scrapes the values
+ * (see MetricsServlet).
+ */
+class RelayMetrics {
+    /** Prefix of the ServletContext attribute each servlet registers under. */
+    public static final String ATTRIBUTE_PREFIX = "oidrelay.metrics.";
+
+    final LongAdder mints = new LongAdder();
+    final LongAdder postHits = new LongAdder();
+    final LongAdder postMisses = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder ioFailures = new LongAdder();
+    final LongAdder stalledDisconnects = new LongAdder();
+    final LongAdder getRejects = new LongAdder();
+    final LongAdder runRejects = new LongAdder();
+    final LongAdder forwardedPosts = new LongAdder();
+    final LongAdder forwardFailures = new LongAdder();
+    final LongAdder resumes = new LongAdder();
+    final LongAdder mailboxedPosts = new LongAdder();
+    final LongAdder oversizePosts = new LongAdder();
+    final LongAdder streamMints = new LongAdder();
+    final LongAdder scopePosts = new LongAdder();
+    final LongAdder scopeDeliveries = new LongAdder();
+    final LongAdder eventDrops = new LongAdder();
+    final LongAdder pendingJobs = new LongAdder();
+
+    final Histogram postToDelivery = new Histogram();
+    final Histogram writeDuration = new Histogram();
+    final Histogram keepaliveDrift = new Histogram();
+
+    /** Supplies the gauges which are cheaper to read than to maintain. */
+    interface Gauges { int executorQueueDepth(); }
+    Gauges gauges = null;
+
+    /**
+     * A histogram of durations, with power-of-two buckets from 1us up to
+     * about 70 minutes. Recording finds the bucket with one
+     * numberOfLeadingZeros.
+     */
+    static class Histogram {
+        static final int BUCKETS = 33;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+        final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            long micros = nanos / 1000;
+            // bucket i holds (2^(i-1), 2^i] microseconds
+            int i = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            counts.incrementAndGet(Math.min(i, BUCKETS));
+            sum.add(nanos);
+        }
+
+        /** @return the bucket upper bound, or +Inf for the last one */
+        static String bound(int i) {
+            return i == BUCKETS ? "+Inf" : Double.toString((1L << i)/1e6);
+        }
+    }
+
+    static final String[][] COUNTERS = {
+        { "oidrelay_mints_total", "Tokens minted for GETs" },
+        { "oidrelay_post_hits_total", "POSTs delivered to a waiting GET" },
+        { "oidrelay_post_misses_total", "POSTs answered 410 Gone" },
+        { "oidrelay_timeouts_total", "GETs which timed out waiting for a POST" },
+        { "oidrelay_io_failures_total", "GETs lost to an I/O error" },
+        { "oidrelay_stalled_disconnects_total",
+          "GETs dropped because the client stopped reading" },
+        { "oidrelay_get_rejects_total",
+          "GETs refused with 503 by admission control" },
+        { "oidrelay_run_rejects_total",
+          "Job runs put off because the worker queue was full" },
+        { "oidrelay_forwarded_posts_total",
+          "POSTs forwarded to the node holding their GET" },
+        { "oidrelay_forward_failures_total",
+          "POSTs answered 502 because their node couldn't be reached" },
+        { "oidrelay_resumes_total",
+          "GETs which took over the token of an earlier, dropped GET" },
+        { "oidrelay_mailboxed_posts_total",
+          "POSTs kept in the mailbox for a dropped GET" },
+        { "oidrelay_oversize_posts_total",
+          "POSTs refused with 413 for a body over maxPostBody" },
+        { "oidrelay_stream_mints_total",
+          "Tokens minted on multiplexed GETs" },
+        { "oidrelay_scope_posts_total",
+          "POSTs to a whole scope, on the node holding its GETs" },
+        { "oidrelay_scope_deliveries_total",
+          "GETs which took the body of a POST to their scope" },
+        { "oidrelay_event_drops_total",
+          "Event log records dropped because the writer fell behind" },
+    };
+    LongAdder[] counters() {
+        return new LongAdder[] { mints, postHits, postMisses, timeouts,
+                                 ioFailures, stalledDisconnects,
+                                 getRejects, runRejects, forwardedPosts,
+                                 forwardFailures, resumes, mailboxedPosts,
+                                 oversizePosts, streamMints, scopePosts,
+                                 scopeDeliveries, eventDrops };
+    }
+
+    static final String[][] HISTOGRAMS = {
+        { "oidrelay_post_to_delivery_seconds",
+          "From a POST arriving to its result being written to the GET" },
+        { "oidrelay_write_duration_seconds",
+          "From output being handed to the container to it all being accepted" },
+        { "oidrelay_keepalive_drift_seconds",
+          "How late keepalive and timeout timers fire" },
+    };
+    Histogram[] histograms() {
+        return new Histogram[] { postToDelivery, writeDuration, keepaliveDrift };
+    }
+
+    /**
+     * Writes the metrics of several servlets in the Prometheus text format,
+     * which wants all the samples of one metric together.
+     */
+    static void writeAll(PrintWriter out, List<String> servlets,
+                         List<RelayMetrics> metrics)
+    {
+        int n = servlets.size();
+        String[] labels = new String[n];
+        for (int i = 0; i < n; ++i)
+            labels[i] = "servlet=\""+servlets.get(i).replace("\\", "\\\\")
+                                      .replace("\"", "\\\"")+"\"";
+
+        for (int f = 0; f < COUNTERS.length; ++f) {
+            header(out, COUNTERS[f], "counter");
+            for (int i = 0; i < n; ++i)
+                out.println(COUNTERS[f][0]+"{"+labels[i]+"} "+
+                            metrics.get(i).counters()[f].sum());
+        }
+
+        header(out, new String[] { "oidrelay_pending_jobs",
+                                   "GETs waiting for a POST" }, "gauge");
+        for (int i = 0; i < n; ++i)
+            out.println("oidrelay_pending_jobs{"+labels[i]+"} "+
+                        metrics.get(i).pendingJobs.sum());
+        header(out, new String[] { "oidrelay_executor_queue_depth",
+                                   "Job runs queued for a worker" }, "gauge");
+        for (int i = 0; i < n; ++i) {
+            Gauges g = metrics.get(i).gauges;
+            if (g != null)
+                out.println("oidrelay_executor_queue_depth{"+labels[i]+"} "+
+                            g.executorQueueDepth());
+        }
+
+        for (int f = 0; f < HISTOGRAMS.length; ++f) {
+            String name = HISTOGRAMS[f][0];
+            header(out, HISTOGRAMS[f], "histogram");
+            for (int i = 0; i < n; ++i) {
+                Histogram h = metrics.get(i).histograms()[f];
+                long cumulative = 0;
+                for (int b = 0; b <= Histogram.BUCKETS; ++b) {
+                    cumulative += h.counts.get(b);
+                    out.println(name+"_bucket{"+labels[i]+",le=\""+
+                                Histogram.bound(b)+"\"} "+cumulative);
+                }
+                out.println(name+"_sum{"+labels[i]+"} "+h.sum.sum()/1e9);
+                out.println(name+"_count{"+labels[i]+"} "+cumulative);
+            }
+        }
+    }
+
+    static void header(PrintWriter out, String[] nameAndHelp, String type) {
+        out.println("# HELP "+nameAndHelp[0]+" "+nameAndHelp[1]);
+        out.println("# TYPE "+nameAndHelp[0]+" "+type);
+    }
+}
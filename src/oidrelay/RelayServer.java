@@ -0,0 +1,1671 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.EventListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterRegistration;
+import javax.servlet.ReadListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRegistration;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.SessionCookieConfig;
+import javax.servlet.SessionTrackingMode;
+import javax.servlet.WriteListener;
+import javax.servlet.descriptor.JspConfigDescriptor;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+/**
+ * A standalone relay: a GetFromPostServlet served by a small HTTP/1.1
+ * server of our own, instead of a servlet container. The servlet, its
+ * TokenFactory and its RequestHandlers are exactly those the war runs;
+ * this just supplies the servlet API they use (requests, responses, async
+ * contexts and non-blocking streams), as lightweight objects over a
+ * selector. Those implement the whole of their interfaces; what the relay
+ * has no use for, such as sessions or multipart bodies, answers as it would
+ * in a container without it.
+ *
+ * One selector thread accepts connections, reads requests and finishes any
+ * writes which couldn't go straight out. Whole requests, bodies included,
+ * are handed to a few worker threads to run the servlet's service(); once a
+ * GET is parked it costs no thread at all. Output is written by whichever
+ * thread produces it, straight to the socket when the socket will take it,
+ * so a keepalive is one gathering write from the thread running its Job: a
+ * chunk-size line, the bytes and a CRLF, in one system call. Keepalives are
+ * mostly the same few bytes on every connection, so they are framed once
+ * and the framed buffer is shared (see sharedFrame()).
+ *
+ * A response is buffered until the servlet flushes it, after which it is
+ * sent chunked; one which completes unflushed goes with a Content-Length.
+ * Connections persist between requests unless the client says otherwise.
+ * Users are authenticated with BASIC against a file of "user:password"
+ * lines, and requests for the "protected" paths need one, as web.xml's
+ * security-constraint does. There are no sessions, no WebSockets (socketPath
+ * must be unset) and no TLS, so run it behind a TLS-terminating proxy.
+ *
+ * Usage: RelayServer [--option value]...; see DEFAULTS for the options.
+ */
+public class RelayServer implements Runnable {
+    static final Charset ASCII = Charset.forName("US-ASCII");
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    static final String[][] DEFAULTS = {
+        { "port", "8080" },
+        { "bind", "" },                    // all addresses if empty
+        { "servlet", "oidrelay.TestServlet" },
+        { "paths", "/api,/u/*" },          // its mappings, as in web.xml
+        { "protected", "/api,/metrics" },  // which need a user
+        { "metrics", "/metrics" },         // MetricsServlet; empty for none
+        { "users", "" },                   // file of user:password lines
+        { "realm", "oidrelay" },
+        { "workers", "2" },                // threads running service()
+        { "idle-timeout-ms", "30000" },    // between and within requests
+    };
+    static final int MAX_HEAD = 16*1024;
+    static final int MAX_FRAME = 64;       // largest chunk sharedFrame() keeps
+    static final byte[] CRLF = { '\r', '\n' };
+    static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ASCII);
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(ASCII);
+    static final int WANT_WRITE = 1, DONE = 2;
+
+    final protected GetFromPostServlet servlet;
+    final protected HttpServlet metricsServlet;
+    final protected Map<String,String> opts;
+    final protected ConcurrentHashMap<String,Object> attributes =
+        new ConcurrentHashMap<String,Object>();
+    final protected ServletContext context;
+    final protected Map<String,String> users = new HashMap<String,String>();
+    final protected List<String> exactPaths = new ArrayList<String>();
+    final protected List<String> prefixPaths = new ArrayList<String>();
+    final protected List<String> protectedPaths;
+    final protected long idleTimeout;
+    protected ServerSocketChannel server;
+    protected Selector selector;
+    protected Thread thread;
+    protected ExecutorService workers;
+    protected volatile boolean stopping = false;
+    // Connections with something for the selector thread to do
+    final protected ConcurrentLinkedQueue<Connection> updates =
+        new ConcurrentLinkedQueue<Connection>();
+    // Only touched by the selector thread
+    final protected ByteBuffer readBuf = ByteBuffer.allocate(16*1024);
+
+    public RelayServer(GetFromPostServlet servlet_, Map<String,String> opts_)
+        throws IOException
+    {
+        servlet = servlet_;
+        opts = options(opts_);
+        metricsServlet = opts.get("metrics").isEmpty() ? null :
+                         new MetricsServlet();
+        for (String p : opts.get("paths").split(",")) {
+            if (p.isEmpty()) continue;
+            if (p.endsWith("/*")) prefixPaths.add(p.substring(0, p.length()-2));
+            else exactPaths.add(p);
+        }
+        protectedPaths = Arrays.asList(opts.get("protected").split(","));
+        idleTimeout = TimeUnit.MILLISECONDS.toNanos(
+                          Long.parseLong(opts.get("idle-timeout-ms")));
+        if (!opts.get("users").isEmpty()) readUsers(opts.get("users"));
+        context = new Context();
+    }
+
+    /** DEFAULTS, overridden by o. */
+    static Map<String,String> options(Map<String,String> o) {
+        Map<String,String> opts = new HashMap<String,String>();
+        for (String[] d : DEFAULTS) opts.put(d[0], d[1]);
+        for (Map.Entry<String,String> e : o.entrySet()) {
+            if (!opts.containsKey(e.getKey()))
+                throw new IllegalArgumentException("Unknown option "+e.getKey());
+            opts.put(e.getKey(), e.getValue());
+        }
+        return opts;
+    }
+
+    protected void readUsers(String file) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line; (line = r.readLine()) != null; ) {
+                line = line.trim();
+                int i = line.indexOf(':');
+                if (line.isEmpty() || line.startsWith("#") || i <= 0) continue;
+                users.put(line.substring(0, i), line.substring(i + 1));
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    public void start() throws IOException, ServletException {
+        servlet.init(new Config(servlet.getClass().getSimpleName()));
+        if (metricsServlet != null)
+            metricsServlet.init(new Config("MetricsServlet"));
+        workers = Executors.newFixedThreadPool(
+                      Integer.parseInt(opts.get("workers")));
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        int port = Integer.parseInt(opts.get("port"));
+        server.bind(opts.get("bind").isEmpty() ? new InetSocketAddress(port) :
+                    new InetSocketAddress(opts.get("bind"), port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this, "oidrelay-http");
+        thread.start();
+    }
+
+    public int getPort() { return server.socket().getLocalPort(); }
+
+    /** Stops accepting, ends every parked GET as the servlet does on
+     *  undeploy, then closes the connections once the news is out. */
+    public void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // we're going anyway
+        }
+        servlet.destroy();
+        if (metricsServlet != null) metricsServlet.destroy();
+        workers.shutdown();
+        try {
+            // The orphaned Jobs are still saying "server shutdown"
+            servlet.pool.executor.awaitTermination(1, TimeUnit.SECONDS);
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopping = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The selector thread
+    public void run() {
+        long lastScan = System.nanoTime();
+        while (!stopping) {
+            try {
+                selector.select(1000);
+                for (Connection c; (c = updates.poll()) != null; ) c.update();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    if (!k.isValid()) continue;
+                    if (k.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection)k.attachment();
+                    try {
+                        if (k.isWritable()) c.onWritable();
+                        if (k.isValid() && k.isReadable()) c.onReadable();
+                    } catch (IOException e) {
+                        c.close(e);
+                    } catch (CancelledKeyException e) {
+                        c.close(null);  // closed on some other thread
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastScan > TimeUnit.SECONDS.toNanos(1)) {
+                    lastScan = now;
+                    closeIdle(now);
+                }
+            } catch (IOException e) {
+                servlet.events.error(thread.getName(), e);
+            } catch (RuntimeException e) {
+                servlet.events.error(thread.getName(), e);
+            }
+        }
+        for (SelectionKey k : selector.keys())
+            if (k.attachment() instanceof Connection)
+                ((Connection)k.attachment()).close(null);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing to be done
+        }
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Connection c = new Connection(ch);
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    // Connections with no request in hand, or with a request only partly
+    // read, get idleTimeout. Parked GETs are the servlet's business.
+    protected void closeIdle(long now) {
+        for (SelectionKey k : selector.keys()) {
+            if (!(k.attachment() instanceof Connection)) continue;
+            Connection c = (Connection)k.attachment();
+            if (c.exchange == null && now - c.idleSince > idleTimeout)
+                c.close(null);
+        }
+    }
+
+    // Small chunks seen lately, framed ready to send. Parked GETs mostly
+    // send the same few keepalives, so they share one copy, and racing on a
+    // slot only ever costs a copy.
+    static final class Frame {
+        final byte[] bytes;
+        final ByteBuffer framed;  // read-only; send a duplicate()
+        Frame(byte[] b, ByteBuffer f) { bytes = b; framed = f; }
+    }
+    final protected Frame[] frames = new Frame[64];
+    /** @return b[off..off+len) framed as a chunk, shared with others */
+    protected ByteBuffer sharedFrame(byte[] b, int off, int len) {
+        int h = 1;
+        for (int i = off; i < off + len; ++i) h = 31*h + b[i];
+        int slot = (h ^ (h >>> 16)) & (frames.length - 1);
+        Frame f = frames[slot];
+        if (f == null || !sameBytes(f.bytes, b, off, len)) {
+            byte[] size = chunkSize(len);
+            byte[] framed = new byte[size.length + len + 2];
+            System.arraycopy(size, 0, framed, 0, size.length);
+            System.arraycopy(b, off, framed, size.length, len);
+            System.arraycopy(CRLF, 0, framed, size.length + len, 2);
+            f = new Frame(Arrays.copyOfRange(b, off, off + len),
+                          ByteBuffer.wrap(framed).asReadOnlyBuffer());
+            frames[slot] = f;
+        }
+        return f.framed.duplicate();
+    }
+
+    static boolean sameBytes(byte[] a, byte[] b, int off, int len) {
+        if (a.length != len) return false;
+        for (int i = 0; i < len; ++i)
+            if (a[i] != b[off + i]) return false;
+        return true;
+    }
+
+    static byte[] chunkSize(int len) {
+        return (Integer.toHexString(len)+"\r\n").getBytes(ASCII);
+    }
+
+    // The Date header, remade once a second
+    protected volatile String date = null;
+    protected volatile long dateSecond = 0;
+    protected String date() {
+        long s = System.currentTimeMillis() / 1000;
+        String d = date;
+        if (d != null && s == dateSecond) return d;
+        d = httpDate().format(new Date(s * 1000));
+        date = d;
+        dateSecond = s;
+        return d;
+    }
+
+    static String reason(int status) {
+        switch (status) {
+        case 100: return "Continue";
+        case 200: return "OK";
+        case 400: return "Bad Request";
+        case 401: return "Unauthorized";
+        case 403: return "Forbidden";
+        case 404: return "Not Found";
+        case 405: return "Method Not Allowed";
+        case 408: return "Request Timeout";
+        case 410: return "Gone";
+        case 413: return "Payload Too Large";
+        case 421: return "Misdirected Request";
+        case 431: return "Request Header Fields Too Large";
+        case 500: return "Internal Server Error";
+        case 501: return "Not Implemented";
+        case 502: return "Bad Gateway";
+        case 503: return "Service Unavailable";
+        case 505: return "HTTP Version Not Supported";
+        default: return "";
+        }
+    }
+
+    /** One client connection, and the order its bytes go out in. */
+    protected class Connection {
+        final protected SocketChannel channel;
+        protected SelectionKey key;
+        // Only touched by the selector thread
+        protected byte[] in = null;       // bytes read but not yet used
+        protected int inLen = 0;
+        protected long idleSince = System.nanoTime();
+        protected boolean sentContinue = false;
+        protected boolean closeAfter = false;  // once this response is out
+        protected volatile Exchange exchange = null;  // being answered
+        // Guarded by this
+        protected ArrayDeque<ByteBuffer> out = null;  // waiting for the socket
+        protected WriteListener listener = null;
+        protected boolean listenerWaiting = false;
+        protected boolean closeWhenDrained = false;
+        protected boolean closed = false;
+        protected int changes = 0;        // for update()
+
+        Connection(SocketChannel channel_) { channel = channel_; }
+
+        /**
+         * Writes as much of bufs as the socket takes now, and leaves the
+         * rest for the selector. bufs[borrowed], if any, is the caller's
+         * array, which it may reuse, so it's copied if it has to wait.
+         */
+        protected void send(ByteBuffer[] bufs, int borrowed) throws IOException {
+            synchronized (this) {
+                if (closed) throw new EOFException("Connection closed");
+                try {
+                    if (out == null || out.isEmpty()) channel.write(bufs);
+                } catch (IOException e) {
+                    // Whoever is writing hears about it; the selector
+                    // just drops the key
+                    closed = true;
+                    out = null;
+                    try {
+                        channel.close();
+                    } catch (IOException e2) {
+                        // it's gone anyway
+                    }
+                    throw e;
+                }
+                boolean queued = false;
+                for (int i = 0; i < bufs.length; ++i) {
+                    ByteBuffer b = bufs[i];
+                    if (!b.hasRemaining()) continue;
+                    if (i == borrowed) {
+                        ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+                        copy.put(b).flip();
+                        b = copy;
+                    }
+                    if (out == null) out = new ArrayDeque<ByteBuffer>();
+                    out.add(b);
+                    queued = true;
+                }
+                if (queued) post(WANT_WRITE);
+            }
+        }
+
+        // A bare response the servlet never saw, then hang up
+        protected void sendSimple(int status, String headers) {
+            String s = "HTTP/1.1 "+status+" "+reason(status)+"\r\n"+
+                       "Date: "+date()+"\r\n"+headers+
+                       "Content-Length: 0\r\nConnection: close\r\n\r\n";
+            try {
+                send(new ByteBuffer[] { ByteBuffer.wrap(s.getBytes(ASCII)) }, -1);
+            } catch (IOException e) {
+                return;
+            }
+            boolean drained;
+            synchronized (this) {
+                closeWhenDrained = true;
+                drained = out == null || out.isEmpty();
+            }
+            if (drained) close(null);
+        }
+
+        /** As ServletOutputStream.isReady(): whether nothing is waiting. */
+        public synchronized boolean isReady() {
+            if (closed || out == null || out.isEmpty()) return true;
+            listenerWaiting = true;
+            return false;
+        }
+
+        /**
+         * The listener hears onWritePossible() after isReady() has said
+         * false, which is all a Job needs, and onError() if the client
+         * goes away.
+         */
+        public void setWriteListener(WriteListener l) {
+            boolean gone;
+            synchronized (this) {
+                listener = l;
+                gone = closed;
+            }
+            if (gone) l.onError(new EOFException("Connection closed"));
+        }
+
+        // Asks the selector thread to call update()
+        protected synchronized void post(int change) {
+            boolean queued = changes != 0;
+            changes |= change;
+            if (!queued) {
+                updates.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // Selector thread
+        protected void update() {
+            int c;
+            synchronized (this) {
+                c = changes;
+                changes = 0;
+                if (closed) return;
+            }
+            if (!key.isValid()) return;
+            if ((c & WANT_WRITE) != 0)
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            if ((c & DONE) != 0 && exchange != null && exchange.completed) {
+                exchange = null;
+                idleSince = System.nanoTime();
+                sentContinue = false;
+                if (closeAfter) {
+                    synchronized (this) {
+                        closeWhenDrained = true;
+                        if (out != null && !out.isEmpty()) return;
+                    }
+                    close(null);
+                    return;
+                }
+                try {
+                    parse();
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        }
+
+        // Selector thread
+        protected void onWritable() throws IOException {
+            WriteListener l = null;
+            boolean hangUp = false;
+            synchronized (this) {
+                if (closed) return;
+                if (out != null && !out.isEmpty()) {
+                    channel.write(out.toArray(new ByteBuffer[out.size()]));
+                    while (!out.isEmpty() && !out.peek().hasRemaining())
+                        out.poll();
+                }
+                if (out == null || out.isEmpty()) {
+                    out = null;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    if (listenerWaiting) {
+                        listenerWaiting = false;
+                        l = listener;
+                    }
+                    hangUp = closeWhenDrained;
+                }
+            }
+            if (l != null) l.onWritePossible();
+            if (hangUp) close(null);
+        }
+
+        // Selector thread
+        protected void onReadable() throws IOException {
+            readBuf.clear();
+            int n = channel.read(readBuf);
+            if (n < 0) {
+                close(new EOFException("Client closed the connection"));
+                return;
+            }
+            if (n == 0 || closeAfter) return;  // nothing more wanted
+            if (in == null) {
+                in = new byte[Math.max(n, 512)];
+            } else if (inLen + n > in.length) {
+                in = Arrays.copyOf(in, Math.max(in.length*2, inLen + n));
+            }
+            System.arraycopy(readBuf.array(), 0, in, inLen, n);
+            inLen += n;
+            if (exchange == null) {
+                parse();
+            } else if (inLen > MAX_HEAD + servlet.maxPostBody) {
+                // Pipelining that much behind a parked GET is no client of ours
+                close(null);
+            }
+        }
+
+        /** Hands the next whole request, if there is one, to a worker. */
+        protected void parse() throws IOException {
+            while (exchange == null && inLen > 0 && !closeAfter) {
+                int headEnd = indexOf(in, 0, inLen, "\r\n\r\n");
+                if (headEnd < 0) {
+                    if (inLen > MAX_HEAD) sendSimple(431, "");
+                    return;
+                }
+                Exchange x = parseHead(headEnd + 4);
+                if (x == null) {
+                    sendSimple(400, "");
+                    return;
+                }
+                int bodyStart = headEnd + 4, used;
+                String te = x.header("Transfer-Encoding");
+                long cl = x.getContentLengthLong();
+                if (te != null) {
+                    if (!"chunked".equalsIgnoreCase(te.trim())) {
+                        sendSimple(501, "");
+                        return;
+                    }
+                    int[] end = new int[1];
+                    byte[] b = dechunk(in, bodyStart, inLen,
+                                       servlet.maxPostBody, end);
+                    if (b == null) {
+                        if (end[0] < 0) {
+                            sendSimple(400, "");
+                            return;
+                        }
+                        continueIfAsked(x);
+                        return;
+                    }
+                    x.body = b;
+                    if (end[0] < 0) {
+                        // Too big: the servlet answers 413 from what we have
+                        closeAfter = true;
+                        used = inLen;
+                    } else {
+                        used = end[0];
+                    }
+                } else if (cl > servlet.maxPostBody) {
+                    // Ditto; it looks at the Content-Length first
+                    closeAfter = true;
+                    used = inLen;
+                } else if (cl > 0) {
+                    if (inLen - bodyStart < cl) {
+                        continueIfAsked(x);
+                        return;
+                    }
+                    x.body = Arrays.copyOfRange(in, bodyStart,
+                                                bodyStart + (int)cl);
+                    used = bodyStart + (int)cl;
+                } else if (cl < -1) {
+                    sendSimple(400, "");
+                    return;
+                } else {
+                    used = bodyStart;
+                }
+                if (used < inLen) {
+                    in = Arrays.copyOfRange(in, used, inLen);
+                    inLen -= used;
+                } else {
+                    in = null;
+                    inLen = 0;
+                }
+                String conn = x.header("Connection");
+                if (!"HTTP/1.1".equals(x.protocol) ||
+                    (conn != null && conn.toLowerCase(Locale.ROOT).contains("close")))
+                    closeAfter = true;
+                dispatch(x);
+            }
+        }
+
+        protected void continueIfAsked(Exchange x) throws IOException {
+            String expect = x.header("Expect");
+            if (sentContinue || expect == null ||
+                !"100-continue".equalsIgnoreCase(expect.trim()))
+                return;
+            sentContinue = true;
+            send(new ByteBuffer[] { ByteBuffer.wrap(CONTINUE) }, -1);
+        }
+
+        // Request line and headers; null if they won't do
+        protected Exchange parseHead(int end) {
+            String head = new String(in, 0, end, ASCII);
+            String[] lines = head.split("\r\n");
+            String[] req = lines[0].split(" ");
+            if (req.length != 3 || !req[1].startsWith("/") ||
+                !req[2].startsWith("HTTP/1."))
+                return null;
+            List<String> headers = new ArrayList<String>();
+            for (int i = 1; i < lines.length; ++i) {
+                if (lines[i].isEmpty()) continue;
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) return null;
+                headers.add(lines[i].substring(0, colon).trim());
+                headers.add(lines[i].substring(colon + 1).trim());
+            }
+            int q = req[1].indexOf('?');
+            try {
+                return new Exchange(this, req[0],
+                                    q < 0 ? req[1] : req[1].substring(0, q),
+                                    q < 0 ? null : req[1].substring(q + 1),
+                                    req[2], headers.toArray(new String[0]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        protected void dispatch(final Exchange x) {
+            exchange = x;
+            if (!x.map()) {
+                x.sendError(HttpServletResponse.SC_NOT_FOUND, null);
+                x.complete();
+                return;
+            }
+            if (protectedPaths.contains(x.servletPath) &&
+                x.getRemoteUser() == null) {
+                x.challenge();
+                x.complete();
+                return;
+            }
+            try {
+                workers.execute(new Runnable() {
+                    public void run() { serve(x); }
+                });
+            } catch (RejectedExecutionException e) {
+                close(null);  // shutting down
+            }
+        }
+
+        /** Hangs up. A parked GET hears about it through its listener,
+         *  if why says anything. Safe from any thread. */
+        protected void close(IOException why) {
+            WriteListener l;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                out = null;
+                l = listener;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // it's gone anyway
+            }
+            if (l != null && why != null) l.onError(why);
+        }
+    }
+
+    // Runs the servlet on a worker thread, and again if it dispatches the
+    // request while it's still running
+    protected void serve(Exchange x) {
+        do {
+            synchronized (x) {
+                x.inService = true;
+                x.redispatch = false;
+            }
+            if (x.dispatcherType == DispatcherType.ASYNC && !x.map()) {
+                x.sendError(HttpServletResponse.SC_NOT_FOUND, null);
+            } else {
+                try {
+                    x.servlet.service(x.request, x.response);
+                } catch (Exception e) {
+                    servlet.events.error(Thread.currentThread().getName(), e);
+                    if (!x.committed && !x.asyncStarted)
+                        x.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                    null);
+                }
+            }
+            synchronized (x) {
+                x.inService = false;
+                if (!x.redispatch) break;
+            }
+        } while (true);
+        if (!x.asyncStarted) x.complete();
+    }
+
+    static int indexOf(byte[] b, int from, int to, String s) {
+        outer:
+        for (int i = from; i + s.length() <= to; ++i) {
+            for (int j = 0; j < s.length(); ++j)
+                if (b[i + j] != s.charAt(j)) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a chunked body from b[pos..end).
+     * @param result set to the index just past the body, or -1 if the body
+     *        was bad or longer than limit
+     * @return the body; its first limit+1 bytes if it was too long; or null
+     *         if it is bad or isn't all here yet
+     */
+    static byte[] dechunk(byte[] b, int pos, int end, int limit, int[] result) {
+        byte[] body = new byte[256];
+        int len = 0;
+        result[0] = 0;
+        while (true) {
+            int eol = indexOf(b, pos, end, "\r\n");
+            if (eol < 0) return null;
+            String line = new String(b, pos, eol - pos, ASCII);
+            int semi = line.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt(
+                    (semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+            } catch (NumberFormatException e) {
+                result[0] = -1;
+                return null;
+            }
+            if (size < 0) {
+                result[0] = -1;
+                return null;
+            }
+            pos = eol + 2;
+            if (size == 0) {
+                // Trailers, which we ignore, then a blank line
+                int t = indexOf(b, pos - 2, end, "\r\n\r\n");
+                if (t < 0) return null;
+                result[0] = t + 4;
+                return Arrays.copyOf(body, len);
+            }
+            int take = Math.min(size, limit + 1 - len);
+            if (end - pos < take) return null;
+            if (len + take > body.length)
+                body = Arrays.copyOf(body, Math.max(body.length*2, len + take));
+            System.arraycopy(b, pos, body, len, take);
+            len += take;
+            if (len > limit) {
+                result[0] = -1;
+                return Arrays.copyOf(body, len);
+            }
+            if (end - pos < size + 2) return null;
+            pos += size + 2;
+        }
+    }
+
+    /**
+     * One request and its response. It is the request's AsyncContext and
+     * the response's output stream; request and response are views of it.
+     */
+    protected class Exchange extends ServletOutputStream
+            implements AsyncContext {
+        final protected Connection conn;
+        final protected String method, protocol;
+        // Changed by dispatch(), while no thread is running the servlet
+        protected String path, query;
+        final protected String[] headers;  // name, value, name, value...
+        final protected long contentLength;
+        protected byte[] body = null;
+        protected HttpServlet servlet;
+        protected String servletPath, pathInfo;
+        final protected Request request = new Request();
+        final protected Response response = new Response();
+        protected Map<String,Object> attrs = null;
+        protected Map<String,List<String>> params = null;
+        protected String user = null;
+        protected boolean userChecked = false;
+        protected String requestCharset = null;
+        protected DispatcherType dispatcherType = DispatcherType.REQUEST;
+        // Response state: only the thread running the servlet or the Job
+        protected int status = HttpServletResponse.SC_OK;
+        protected String contentType = null, charset = null;
+        protected List<String> respHeaders = null;  // name, value...
+        protected byte[] buf = null;  // until committed
+        protected int count = 0;
+        protected PrintWriter writer = null;
+        protected boolean committed = false, errorSent = false;
+        protected boolean completing = false;  // flushing the writer
+        protected volatile boolean asyncStarted = false, completed = false;
+        protected long timeout = 30000;
+        protected List<AsyncListener> listeners = null;
+        // Guarded by this; see serve()
+        protected boolean inService = false, redispatch = false;
+
+        Exchange(Connection conn_, String method_, String path_,
+                 String query_, String protocol_, String[] headers_) {
+            conn = conn_;
+            method = method_;
+            path = path_;
+            query = query_;
+            protocol = protocol_;
+            headers = headers_;
+            String cl = header("Content-Length");
+            contentLength = cl == null ? -1 : Long.parseLong(cl.trim());
+        }
+
+        /** Finds the servlet for the path. @return false if none */
+        protected boolean map() {
+            pathInfo = null;
+            if (metricsServlet != null && path.equals(opts.get("metrics"))) {
+                servlet = metricsServlet;
+                servletPath = path;
+                return true;
+            }
+            servlet = RelayServer.this.servlet;
+            if (exactPaths.contains(path)) {
+                servletPath = path;
+                return true;
+            }
+            for (String p : prefixPaths) {
+                if (path.equals(p) || path.startsWith(p+"/")) {
+                    servletPath = p;
+                    pathInfo = path.length() > p.length() ?
+                               path.substring(p.length()) : null;
+                    return true;
+                }
+            }
+            servlet = null;
+            return false;
+        }
+
+        public String header(String name) {
+            for (int i = 0; i < headers.length; i += 2)
+                if (headers[i].equalsIgnoreCase(name)) return headers[i + 1];
+            return null;
+        }
+
+        protected List<String> headers(String name) {
+            List<String> v = new ArrayList<String>();
+            for (int i = 0; i < headers.length; i += 2)
+                if (headers[i].equalsIgnoreCase(name)) v.add(headers[i + 1]);
+            return v;
+        }
+
+        public long getContentLengthLong() { return contentLength; }
+
+        /** The BASIC user, if the password matches. */
+        public String getRemoteUser() {
+            if (userChecked) return user;
+            userChecked = true;
+            String auth = header("Authorization");
+            if (auth == null || !auth.regionMatches(true, 0, "Basic ", 0, 6))
+                return null;
+            String pair;
+            try {
+                pair = new String(Base64.getDecoder().decode(
+                    auth.substring(6).trim()), "UTF-8");
+            } catch (IllegalArgumentException e) {
+                return null;
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            int colon = pair.indexOf(':');
+            if (colon <= 0) return null;
+            String name = pair.substring(0, colon);
+            if (passwordMatches(name, pair.substring(colon + 1))) user = name;
+            return user;
+        }
+
+        protected boolean passwordMatches(String name, String password) {
+            String p = users.get(name);
+            return p != null && MessageDigest.isEqual(
+                p.getBytes(ByteTemplate.UTF8),
+                password.getBytes(ByteTemplate.UTF8));
+        }
+
+        // A 401 asking for BASIC
+        protected void challenge() {
+            addHeader("WWW-Authenticate",
+                      "Basic realm=\""+opts.get("realm")+"\"");
+            sendError(HttpServletResponse.SC_UNAUTHORIZED, null);
+        }
+
+        protected Map<String,List<String>> params() {
+            if (params == null) {
+                params = new LinkedHashMap<String,List<String>>();
+                parseParams(query);
+                String ct = header("Content-Type");
+                if ("POST".equals(method) && body != null && ct != null &&
+                    ct.startsWith("application/x-www-form-urlencoded"))
+                    parseParams(new String(body, ASCII));
+            }
+            return params;
+        }
+
+        protected void parseParams(String s) {
+            if (s == null) return;
+            for (String pair : s.split("&")) {
+                if (pair.isEmpty()) continue;
+                int eq = pair.indexOf('=');
+                String k = eq < 0 ? pair : pair.substring(0, eq);
+                String v = eq < 0 ? "" : pair.substring(eq + 1);
+                try {
+                    k = URLDecoder.decode(k, "UTF-8");
+                    v = URLDecoder.decode(v, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new AssertionError(e);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                List<String> l = params.get(k);
+                if (l == null) params.put(k, l = new ArrayList<String>());
+                l.add(v);
+            }
+        }
+
+        protected String host() {
+            String h = header("Host");
+            if (h != null) return h;
+            InetSocketAddress a = localAddress();
+            return a.getHostString()+":"+a.getPort();
+        }
+
+        protected InetSocketAddress localAddress() {
+            return (InetSocketAddress)conn.channel.socket()
+                       .getLocalSocketAddress();
+        }
+
+        protected InetSocketAddress remoteAddress() {
+            return (InetSocketAddress)conn.channel.socket()
+                       .getRemoteSocketAddress();
+        }
+
+        protected void addHeader(String name, String value) {
+            if (committed) return;
+            if (respHeaders == null) respHeaders = new ArrayList<String>();
+            respHeaders.add(name);
+            respHeaders.add(value);
+        }
+
+        protected void setHeader(String name, String value) {
+            if (committed) return;
+            if (respHeaders != null) {
+                for (int i = respHeaders.size() - 2; i >= 0; i -= 2) {
+                    if (respHeaders.get(i).equalsIgnoreCase(name)) {
+                        respHeaders.remove(i + 1);
+                        respHeaders.remove(i);
+                    }
+                }
+            }
+            if (value != null) addHeader(name, value);
+        }
+
+        protected List<String> responseHeaders(String name) {
+            List<String> v = new ArrayList<String>();
+            for (int i = 0; respHeaders != null && i < respHeaders.size(); i += 2)
+                if (name == null || respHeaders.get(i).equalsIgnoreCase(name))
+                    v.add(respHeaders.get(i + (name == null ? 0 : 1)));
+            return v;
+        }
+
+        protected void setContentType(String type) {
+            contentType = type;
+            if (type == null) return;
+            int i = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+            if (i >= 0) {
+                charset = type.substring(i + 8).trim();
+                contentType = type.substring(0, i).replaceAll("[;\\s]+$", "");
+            }
+        }
+
+        protected void sendError(int sc, String message) {
+            if (committed) throw new IllegalStateException("Committed");
+            status = sc;
+            contentType = "text/html";
+            charset = "ISO-8859-1";
+            String m = message == null ? reason(sc) :
+                message.replace("&", "&amp;").replace("<", "&lt;");
+            buf = ("<html><body><h2>HTTP ERROR "+sc+"</h2><p>"+m+
+                   "</p></body></html>\r\n").getBytes(LATIN1);
+            count = buf.length;
+            errorSent = true;
+        }
+
+        // Sends the head, with the body so far as its first chunk, or with
+        // all of it if last
+        protected void commit(boolean last) throws IOException {
+            committed = true;
+            StringBuilder h = new StringBuilder(256);
+            h.append("HTTP/1.1 ").append(status).append(' ')
+             .append(reason(status)).append("\r\n");
+            h.append("Date: ").append(date()).append("\r\n");
+            if (contentType != null) {
+                h.append("Content-Type: ").append(contentType);
+                if (charset != null) h.append(";charset=").append(charset);
+                h.append("\r\n");
+            }
+            if (respHeaders != null) {
+                for (int i = 0; i < respHeaders.size(); i += 2)
+                    h.append(respHeaders.get(i)).append(": ")
+                     .append(respHeaders.get(i + 1)).append("\r\n");
+            }
+            if (last)
+                h.append("Content-Length: ").append(count).append("\r\n");
+            else
+                h.append("Transfer-Encoding: chunked\r\n");
+            if (conn.closeAfter) h.append("Connection: close\r\n");
+            h.append("\r\n");
+            ByteBuffer head = ByteBuffer.wrap(h.toString().getBytes(ASCII));
+            byte[] b = buf;
+            int n = count;
+            buf = null;
+            count = 0;
+            if (n == 0)
+                conn.send(new ByteBuffer[] { head }, -1);
+            else if (last)
+                conn.send(new ByteBuffer[] { head, ByteBuffer.wrap(b, 0, n) }, -1);
+            else
+                conn.send(new ByteBuffer[] { head,
+                              ByteBuffer.wrap(chunkSize(n)),
+                              ByteBuffer.wrap(b, 0, n),
+                              ByteBuffer.wrap(CRLF) }, -1);
+        }
+
+        // ServletOutputStream methods
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (errorSent || completed || len == 0) return;
+            if (!committed) {
+                if (buf == null)
+                    buf = new byte[Math.max(256, len)];
+                else if (count + len > buf.length)
+                    buf = Arrays.copyOf(buf, Math.max(buf.length*2, count + len));
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+            } else if (len <= MAX_FRAME) {
+                conn.send(new ByteBuffer[] { sharedFrame(b, off, len) }, -1);
+            } else {
+                conn.send(new ByteBuffer[] { ByteBuffer.wrap(chunkSize(len)),
+                                             ByteBuffer.wrap(b, off, len),
+                                             ByteBuffer.wrap(CRLF) }, 1);
+            }
+        }
+        public void flush() throws IOException {
+            if (!committed && !errorSent && !completing) commit(false);
+        }
+        public boolean isReady() { return conn.isReady(); }
+        public void setWriteListener(WriteListener l) { conn.setWriteListener(l); }
+
+        // AsyncContext methods
+        public ServletRequest getRequest() { return request; }
+        public ServletResponse getResponse() { return response; }
+        public boolean hasOriginalRequestAndResponse() { return true; }
+        public void dispatch() { dispatch(context, path); }
+        public void dispatch(String p) { dispatch(context, p); }
+        /** Runs the servlet again for the path p (with its own query, if it
+         *  has one), once the current run of it has returned. */
+        public void dispatch(ServletContext c, String p) {
+            if (c != context)
+                throw new IllegalArgumentException("Not this server's context");
+            boolean now;
+            synchronized (this) {
+                if (!asyncStarted || completed)
+                    throw new IllegalStateException("Not async");
+                asyncStarted = false;
+                dispatcherType = DispatcherType.ASYNC;
+                int q = p.indexOf('?');
+                path = q < 0 ? p : p.substring(0, q);
+                if (q >= 0) {
+                    query = p.substring(q + 1);
+                    params = null;
+                }
+                now = !inService;
+                redispatch = inService;
+            }
+            if (now) {
+                workers.execute(new Runnable() {
+                    public void run() { serve(Exchange.this); }
+                });
+            }
+        }
+        public void start(Runnable r) { workers.execute(r); }
+        public void addListener(AsyncListener l) {
+            if (listeners == null) listeners = new ArrayList<AsyncListener>();
+            listeners.add(l);
+        }
+        public void addListener(AsyncListener l, ServletRequest req,
+                                ServletResponse resp) { addListener(l); }
+        public <T extends AsyncListener> T createListener(Class<T> c)
+                throws ServletException {
+            try {
+                return c.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new ServletException(e);
+            }
+        }
+        // There's nothing left to time out: the body came in with the
+        // request, and parked GETs keep their own time
+        public void setTimeout(long t) { timeout = t; }
+        public long getTimeout() { return timeout; }
+
+        /** Ends the response; the connection goes on to its next request. */
+        public void complete() {
+            if (completed) return;
+            try {
+                completing = true;
+                if (writer != null) writer.flush();
+                completed = true;
+                if (!committed)
+                    commit(true);
+                else
+                    conn.send(new ByteBuffer[] { ByteBuffer.wrap(LAST_CHUNK) }, -1);
+            } catch (IOException e) {
+                // The client's gone; the selector will notice
+            }
+            completed = true;
+            if (listeners != null)
+                for (AsyncListener l : listeners) {
+                    try {
+                        l.onComplete(new AsyncEvent(this));
+                    } catch (IOException e) {
+                        // nothing to tell
+                    }
+                }
+            conn.post(DONE);
+        }
+
+        public String toString() {
+            return method+" "+path+(query == null ? "" : "?"+query);
+        }
+
+        /** The request, as the servlet sees it. There are no sessions,
+         *  dispatchers, multipart bodies or upgrades. */
+        protected class Request implements HttpServletRequest {
+            // ServletRequest methods
+            public Object getAttribute(String name)
+            { return attrs == null ? null : attrs.get(name); }
+            public Enumeration<String> getAttributeNames() {
+                return Collections.enumeration(attrs == null ?
+                    new ArrayList<String>() :
+                    new ArrayList<String>(attrs.keySet()));
+            }
+            public void setAttribute(String name, Object o) {
+                if (o == null) {
+                    removeAttribute(name);
+                    return;
+                }
+                if (attrs == null) attrs = new HashMap<String,Object>();
+                attrs.put(name, o);
+            }
+            public void removeAttribute(String name)
+            { if (attrs != null) attrs.remove(name); }
+            public String getCharacterEncoding() { return requestCharset; }
+            public void setCharacterEncoding(String env)
+                    throws UnsupportedEncodingException {
+                if (!Charset.isSupported(env))
+                    throw new UnsupportedEncodingException(env);
+                requestCharset = env;
+            }
+            public int getContentLength()
+            { return (int)Math.min(contentLength, Integer.MAX_VALUE); }
+            public long getContentLengthLong() { return contentLength; }
+            public String getContentType() { return header("Content-Type"); }
+            public ServletInputStream getInputStream() { return new BodyInput(); }
+            public BufferedReader getReader() throws IOException {
+                return new BufferedReader(new InputStreamReader(new BodyInput(),
+                    requestCharset == null ? "ISO-8859-1" : requestCharset));
+            }
+            public String getParameter(String name) {
+                List<String> v = params().get(name);
+                return v == null ? null : v.get(0);
+            }
+            public Enumeration<String> getParameterNames()
+            { return Collections.enumeration(params().keySet()); }
+            public String[] getParameterValues(String name) {
+                List<String> v = params().get(name);
+                return v == null ? null : v.toArray(new String[v.size()]);
+            }
+            public Map<String,String[]> getParameterMap() {
+                Map<String,String[]> m = new LinkedHashMap<String,String[]>();
+                for (Map.Entry<String,List<String>> e : params().entrySet())
+                    m.put(e.getKey(), e.getValue().toArray(
+                                          new String[e.getValue().size()]));
+                return Collections.unmodifiableMap(m);
+            }
+            public String getProtocol() { return protocol; }
+            public String getScheme() { return "http"; }
+            public String getServerName()
+            { return host().replaceFirst(":\\d+$", ""); }
+            public int getServerPort() {
+                String h = host();
+                int colon = h.lastIndexOf(':');
+                if (colon < 0 || h.endsWith("]")) return 80;
+                try {
+                    return Integer.parseInt(h.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    return localAddress().getPort();
+                }
+            }
+            public String getRemoteAddr()
+            { return remoteAddress().getAddress().getHostAddress(); }
+            public String getRemoteHost() { return getRemoteAddr(); }
+            public int getRemotePort() { return remoteAddress().getPort(); }
+            public String getLocalName() { return localAddress().getHostString(); }
+            public String getLocalAddr()
+            { return localAddress().getAddress().getHostAddress(); }
+            public int getLocalPort() { return localAddress().getPort(); }
+            public Locale getLocale() { return Locale.getDefault(); }
+            public Enumeration<Locale> getLocales()
+            { return Collections.enumeration(Arrays.asList(getLocale())); }
+            public boolean isSecure() { return false; }
+            public RequestDispatcher getRequestDispatcher(String p)
+            { return null; }
+            @Deprecated
+            public String getRealPath(String p) { return null; }
+            public ServletContext getServletContext() { return context; }
+            public AsyncContext startAsync() {
+                asyncStarted = true;
+                return Exchange.this;
+            }
+            public AsyncContext startAsync(ServletRequest req,
+                                           ServletResponse resp)
+            { return startAsync(); }
+            public boolean isAsyncStarted() { return asyncStarted; }
+            public boolean isAsyncSupported() { return true; }
+            public AsyncContext getAsyncContext() {
+                if (!asyncStarted) throw new IllegalStateException("Not async");
+                return Exchange.this;
+            }
+            public DispatcherType getDispatcherType() { return dispatcherType; }
+
+            // HttpServletRequest methods
+            public String getAuthType()
+            { return getRemoteUser() == null ? null : BASIC_AUTH; }
+            public Cookie[] getCookies() { return null; }
+            public long getDateHeader(String name) {
+                String v = header(name);
+                if (v == null) return -1;
+                try {
+                    return httpDate().parse(v).getTime();
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Bad date "+v);
+                }
+            }
+            public String getHeader(String name) { return header(name); }
+            public Enumeration<String> getHeaders(String name)
+            { return Collections.enumeration(headers(name)); }
+            public Enumeration<String> getHeaderNames() {
+                List<String> v = new ArrayList<String>();
+                for (int i = 0; i < headers.length; i += 2) v.add(headers[i]);
+                return Collections.enumeration(v);
+            }
+            public int getIntHeader(String name) {
+                String v = header(name);
+                return v == null ? -1 : Integer.parseInt(v.trim());
+            }
+            public String getMethod() { return method; }
+            public String getPathInfo() { return pathInfo; }
+            public String getPathTranslated() { return null; }
+            public String getContextPath() { return ""; }
+            public String getQueryString() { return query; }
+            public String getRemoteUser() { return Exchange.this.getRemoteUser(); }
+            public boolean isUserInRole(String role)
+            { return getRemoteUser() != null; }
+            public Principal getUserPrincipal() {
+                final String u = getRemoteUser();
+                return u == null ? null : new Principal() {
+                    public String getName() { return u; }
+                };
+            }
+            public String getRequestedSessionId() { return null; }
+            public String getRequestURI() { return path; }
+            public StringBuffer getRequestURL()
+            { return new StringBuffer("http://"+host()+path); }
+            public String getServletPath() { return servletPath; }
+            public HttpSession getSession(boolean create) {
+                if (create) throw new IllegalStateException("No sessions");
+                return null;
+            }
+            public HttpSession getSession() { return getSession(true); }
+            public String changeSessionId()
+            { throw new IllegalStateException("No session"); }
+            public boolean isRequestedSessionIdValid() { return false; }
+            public boolean isRequestedSessionIdFromCookie() { return false; }
+            public boolean isRequestedSessionIdFromURL() { return false; }
+            @Deprecated
+            public boolean isRequestedSessionIdFromUrl() { return false; }
+            public boolean authenticate(HttpServletResponse resp) {
+                if (getRemoteUser() != null) return true;
+                challenge();
+                return false;
+            }
+            public void login(String name, String password)
+                    throws ServletException {
+                if (getRemoteUser() != null)
+                    throw new ServletException("Already logged in");
+                if (!passwordMatches(name, password))
+                    throw new ServletException("Login failed");
+                user = name;
+            }
+            public void logout() {
+                user = null;
+                userChecked = true;
+            }
+            public Collection<Part> getParts() throws ServletException
+            { throw new ServletException("Not a multipart/form-data request"); }
+            public Part getPart(String name) throws ServletException
+            { throw new ServletException("Not a multipart/form-data request"); }
+            public <T extends HttpUpgradeHandler> T upgrade(Class<T> c)
+                    throws ServletException
+            { throw new ServletException("RelayServer doesn't upgrade"); }
+
+            public String toString() { return Exchange.this.toString(); }
+        }
+
+        /** The response, as the servlet sees it. */
+        protected class Response implements HttpServletResponse {
+            // ServletResponse methods
+            public String getCharacterEncoding()
+            { return charset == null ? "ISO-8859-1" : charset; }
+            public String getContentType() { return contentType; }
+            public ServletOutputStream getOutputStream() { return Exchange.this; }
+            public PrintWriter getWriter() throws IOException {
+                if (writer == null)
+                    writer = new PrintWriter(new OutputStreamWriter(
+                        Exchange.this, getCharacterEncoding()));
+                return writer;
+            }
+            public void setCharacterEncoding(String c)
+            { if (!committed && writer == null) charset = c; }
+            // We work the length out ourselves
+            public void setContentLength(int len) { }
+            public void setContentLengthLong(long len) { }
+            public void setContentType(String type)
+            { if (!committed) Exchange.this.setContentType(type); }
+            public void setBufferSize(int size) { }
+            public int getBufferSize() { return Integer.MAX_VALUE; }
+            public void flushBuffer() throws IOException {
+                if (writer != null) writer.flush();
+                flush();
+            }
+            public void resetBuffer() {
+                if (committed) throw new IllegalStateException("Committed");
+                count = 0;
+            }
+            public boolean isCommitted() { return committed || errorSent; }
+            public void reset() {
+                resetBuffer();
+                status = HttpServletResponse.SC_OK;
+                respHeaders = null;
+                contentType = charset = null;
+            }
+            public void setLocale(Locale loc) { }
+            public Locale getLocale() { return Locale.getDefault(); }
+
+            // HttpServletResponse methods
+            public void addCookie(Cookie c) {
+                StringBuilder v = new StringBuilder(c.getName()).append('=')
+                    .append(c.getValue() == null ? "" : c.getValue());
+                if (c.getPath() != null) v.append("; Path=").append(c.getPath());
+                if (c.getDomain() != null)
+                    v.append("; Domain=").append(c.getDomain());
+                if (c.getMaxAge() >= 0)
+                    v.append("; Max-Age=").append(c.getMaxAge());
+                if (c.getSecure()) v.append("; Secure");
+                if (c.isHttpOnly()) v.append("; HttpOnly");
+                addHeader("Set-Cookie", v.toString());
+            }
+            public boolean containsHeader(String name)
+            { return getHeader(name) != null; }
+            public String encodeURL(String url) { return url; }
+            public String encodeRedirectURL(String url) { return url; }
+            @Deprecated
+            public String encodeUrl(String url) { return url; }
+            @Deprecated
+            public String encodeRedirectUrl(String url) { return url; }
+            public void sendError(int sc, String msg)
+            { Exchange.this.sendError(sc, msg); }
+            public void sendError(int sc) { Exchange.this.sendError(sc, null); }
+            public void sendRedirect(String location) {
+                if (committed) throw new IllegalStateException("Committed");
+                resetBuffer();
+                status = HttpServletResponse.SC_FOUND;
+                setHeader("Location", location.startsWith("/") ?
+                          "http://"+host()+location : location);
+            }
+            public void setDateHeader(String name, long date)
+            { setHeader(name, httpDate().format(new Date(date))); }
+            public void addDateHeader(String name, long date)
+            { addHeader(name, httpDate().format(new Date(date))); }
+            public void setHeader(String name, String value)
+            { Exchange.this.setHeader(name, value); }
+            public void addHeader(String name, String value)
+            { Exchange.this.addHeader(name, value); }
+            public void setIntHeader(String name, int value)
+            { setHeader(name, String.valueOf(value)); }
+            public void addIntHeader(String name, int value)
+            { addHeader(name, String.valueOf(value)); }
+            public void setStatus(int sc) { if (!committed) status = sc; }
+            @Deprecated
+            public void setStatus(int sc, String sm) { setStatus(sc); }
+            public int getStatus() { return status; }
+            public String getHeader(String name) {
+                List<String> v = responseHeaders(name);
+                return v.isEmpty() ? null : v.get(v.size() - 1);
+            }
+            public Collection<String> getHeaders(String name)
+            { return responseHeaders(name); }
+            public Collection<String> getHeaderNames()
+            { return new LinkedHashSet<String>(responseHeaders(null)); }
+
+            public String toString()
+            { return "Response to "+Exchange.this.toString(); }
+        }
+
+        /** The body, all of which came with the request. */
+        protected class BodyInput extends ServletInputStream {
+            protected int pos = 0;
+            protected int length() { return body == null ? 0 : body.length; }
+            public int read() {
+                return pos < length() ? body[pos++] & 0xff : -1;
+            }
+            public int read(byte[] b, int off, int len) {
+                if (pos >= length()) return -1;
+                int n = Math.min(len, length() - pos);
+                System.arraycopy(body, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            public boolean isFinished() { return pos >= length(); }
+            public boolean isReady() { return !isFinished(); }
+            // It's all here, so the listener hears everything at once
+            public void setReadListener(ReadListener l) {
+                try {
+                    if (!isFinished()) l.onDataAvailable();
+                    l.onAllDataRead();
+                } catch (IOException e) {
+                    l.onError(e);
+                }
+            }
+        }
+    }
+
+    static SimpleDateFormat httpDate() {
+        SimpleDateFormat f = new SimpleDateFormat(
+            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f;
+    }
+
+    /** A servlet's config: its name, and no init parameters. */
+    protected class Config implements ServletConfig {
+        final protected String name;
+
+        Config(String name_) { name = name_; }
+
+        public String getServletName() { return name; }
+        public ServletContext getServletContext() { return context; }
+        public String getInitParameter(String n) { return null; }
+        public Enumeration<String> getInitParameterNames()
+        { return Collections.<String>emptyEnumeration(); }
+        public String toString() { return "ServletConfig "+name; }
+    }
+
+    /**
+     * The ServletContext: attributes (which is how MetricsServlet finds the
+     * relay's metrics) and logging, to the relay's EventLog. It has only the
+     * servlets it was built with, and no resources, dispatchers or sessions;
+     * it counts as already initialized, so nothing can be added to it.
+     */
+    protected class Context implements ServletContext {
+        public String getContextPath() { return ""; }
+        public ServletContext getContext(String uripath)
+        { return uripath.equals("") || uripath.equals("/") ? this : null; }
+        public int getMajorVersion() { return 3; }
+        public int getMinorVersion() { return 1; }
+        public int getEffectiveMajorVersion() { return 3; }
+        public int getEffectiveMinorVersion() { return 1; }
+        public String getMimeType(String file) { return null; }
+        public Set<String> getResourcePaths(String p) { return null; }
+        public URL getResource(String p) { return null; }
+        public InputStream getResourceAsStream(String p) { return null; }
+        public RequestDispatcher getRequestDispatcher(String p) { return null; }
+        public RequestDispatcher getNamedDispatcher(String name) { return null; }
+        @Deprecated
+        public Servlet getServlet(String name) { return null; }
+        @Deprecated
+        public Enumeration<Servlet> getServlets()
+        { return Collections.<Servlet>emptyEnumeration(); }
+        @Deprecated
+        public Enumeration<String> getServletNames()
+        { return Collections.<String>emptyEnumeration(); }
+        public void log(String msg) { servlet.events.log(msg, null); }
+        @Deprecated
+        public void log(Exception e, String msg) { servlet.events.log(msg, e); }
+        public void log(String msg, Throwable t) { servlet.events.log(msg, t); }
+        public String getRealPath(String p) { return null; }
+        public String getServerInfo() { return "oidrelay RelayServer"; }
+        public String getInitParameter(String name) { return null; }
+        public Enumeration<String> getInitParameterNames()
+        { return Collections.<String>emptyEnumeration(); }
+        public boolean setInitParameter(String name, String value)
+        { throw initialized(); }
+        public Object getAttribute(String name) { return attributes.get(name); }
+        public Enumeration<String> getAttributeNames() {
+            return Collections.enumeration(
+                new ArrayList<String>(attributes.keySet()));
+        }
+        public void setAttribute(String name, Object o) {
+            if (o == null) attributes.remove(name);
+            else attributes.put(name, o);
+        }
+        public void removeAttribute(String name) { attributes.remove(name); }
+        public String getServletContextName() { return "oidrelay"; }
+        public ServletRegistration.Dynamic addServlet(String name,
+                                                      String className)
+        { throw initialized(); }
+        public ServletRegistration.Dynamic addServlet(String name, Servlet s)
+        { throw initialized(); }
+        public ServletRegistration.Dynamic addServlet(String name,
+                Class<? extends Servlet> c)
+        { throw initialized(); }
+        public <T extends Servlet> T createServlet(Class<T> c)
+        { throw initialized(); }
+        public ServletRegistration getServletRegistration(String name)
+        { return null; }
+        public Map<String,? extends ServletRegistration> getServletRegistrations()
+        { return Collections.<String,ServletRegistration>emptyMap(); }
+        public FilterRegistration.Dynamic addFilter(String name,
+                                                    String className)
+        { throw initialized(); }
+        public FilterRegistration.Dynamic addFilter(String name, Filter f)
+        { throw initialized(); }
+        public FilterRegistration.Dynamic addFilter(String name,
+                Class<? extends Filter> c)
+        { throw initialized(); }
+        public <T extends Filter> T createFilter(Class<T> c)
+        { throw initialized(); }
+        public FilterRegistration getFilterRegistration(String name)
+        { return null; }
+        public Map<String,? extends FilterRegistration> getFilterRegistrations()
+        { return Collections.<String,FilterRegistration>emptyMap(); }
+        public SessionCookieConfig getSessionCookieConfig() { return null; }
+        public void setSessionTrackingModes(Set<SessionTrackingMode> modes)
+        { throw initialized(); }
+        public Set<SessionTrackingMode> getDefaultSessionTrackingModes()
+        { return EnumSet.noneOf(SessionTrackingMode.class); }
+        public Set<SessionTrackingMode> getEffectiveSessionTrackingModes()
+        { return EnumSet.noneOf(SessionTrackingMode.class); }
+        public void addListener(String className) { throw initialized(); }
+        public <T extends EventListener> void addListener(T l)
+        { throw initialized(); }
+        public void addListener(Class<? extends EventListener> c)
+        { throw initialized(); }
+        public <T extends EventListener> T createListener(Class<T> c)
+        { throw initialized(); }
+        public JspConfigDescriptor getJspConfigDescriptor() { return null; }
+        public ClassLoader getClassLoader()
+        { return RelayServer.class.getClassLoader(); }
+        public void declareRoles(String... roles) { throw initialized(); }
+        public String getVirtualServerName() { return "oidrelay"; }
+
+        protected IllegalStateException initialized() {
+            return new IllegalStateException(
+                "The RelayServer context is already initialized");
+        }
+
+        public String toString() { return "RelayServer context"; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long began = System.nanoTime();
+        Map<String,String> o = new HashMap<String,String>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            o.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        String cls = options(o).get("servlet");
+        GetFromPostServlet servlet = (GetFromPostServlet)Class.forName(cls)
+            .getDeclaredConstructor().newInstance();
+        final RelayServer server = new RelayServer(servlet, o);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("oidrelay-stop") {
+            public void run() { server.stop(); }
+        });
+        if (server.users.isEmpty())
+            servlet.log("No --users file, so nobody can log in to the"+
+                        " protected paths");
+        servlet.log("Listening on port "+server.getPort()+" after "+
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began)+
+                    " ms");
+    }
+}
@@ -0,0 +1,335 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+import oidrelay.GetFromPostServlet.TokenRequest;
+import oidrelay.GetFromPostServlet.TokenWithEndpoint;
+
+/**
+ * A WebSocket (JSR 356) way to wait for a POST, as an alternative to the
+ * chunked GET. A connection to the servlet's socketPath is handled just like
+ * a GET: it is authenticated the same way, gets its token from the servlet's
+ * TokenFactory, and is parked in the servlet's JobPool, so POSTs reach it by
+ * exactly the same path. The frames are:
+ *   1. A text frame holding the URL to POST to.
+ *   2. Either a binary frame holding the POSTed body as it was sent, or a
+ *      text frame "FAILED: <string>"; then the server closes.
+ * Keepalives are WebSocket pings, one every socketPingInterval seconds. A
+ * client which hasn't answered one within socketPongTimeout seconds is
+ * dropped, as is one which hasn't taken a frame within ioTimeoutInterval,
+ * which is how a slow client is noticed: frames are sent asynchronously,
+ * one at a time.
+ *
+ * The query parameters are those of a GET, so "resume=<URL>" picks up a
+ * token whose connection dropped.
+ */
+public class RelaySocket extends Endpoint {
+    final protected GetFromPostServlet servlet;
+    protected volatile SocketJob job = null;
+
+    RelaySocket(GetFromPostServlet servlet_) { servlet = servlet_; }
+
+    /** Adds the endpoint at servlet.socketPath. */
+    public static void register(final GetFromPostServlet servlet)
+            throws DeploymentException
+    {
+        ServerContainer container = (ServerContainer)servlet.getServletContext()
+            .getAttribute(ServerContainer.class.getName());
+        if (container == null)
+            throw new DeploymentException("No WebSocket support in this container");
+        container.addEndpoint(ServerEndpointConfig.Builder
+            .create(RelaySocket.class, servlet.socketPath)
+            .configurator(new ServerEndpointConfig.Configurator() {
+                public <T> T getEndpointInstance(Class<T> c) {
+                    return c.cast(new RelaySocket(servlet));
+                }
+            }).build());
+    }
+
+    /**
+     * The Job for one connection. It runs under the same state word as any
+     * Job; where that would write to a servlet response, this sends a frame,
+     * and the container's SendHandler callback stands in for the
+     * WriteListener.
+     */
+    protected class SocketJob extends GetFromPostServlet.Job
+            implements SendHandler {
+        final protected Session session;
+        protected volatile boolean sending = false;
+        protected volatile long pingSentAt = 0;  // 0 once it's answered
+        protected volatile long lastPingAt = System.nanoTime();
+
+        SocketJob(Session session_, TokenWithEndpoint token_, String baseURL_) {
+            servlet.super(null, token_, servlet.pool, baseURL_);
+            session = session_;
+        }
+
+        protected void run2(int flags) {
+            if ((flags & GetFromPostServlet.IO_ERROR) != 0 || !session.isOpen()) {
+                finish();
+                return;
+            }
+            long now = System.nanoTime();
+            long ioTimeout = TimeUnit.MILLISECONDS.toNanos(
+                                 servlet.ioTimeoutInterval);
+            if (sending) {
+                // onResult() schedules us again when the frame has gone
+                if (now - writeStartedAt > ioTimeout) {
+                    servlet.metrics.stalledDisconnects.increment();
+                    servlet.events.record(EventLog.STALLED, token);
+                    finish();
+                }
+                return;
+            }
+            if (writeStartedAt != 0) {
+                servlet.metrics.writeDuration.record(now - writeStartedAt);
+                if (servlet.trace.enabled())
+                    servlet.trace.write(token, now - writeStartedAt,
+                                        committed != null);
+                writeStartedAt = 0;
+            }
+            if (numRuns == 0) {
+                ++numRuns;
+                send(baseURL+token.getEndpointToken());
+                return;
+            }
+            if (committed != null) {
+                // The last frame is out
+                if (committed.postedAt != 0) {
+                    servlet.metrics.postToDelivery.record(now - committed.postedAt);
+                    servlet.events.record(EventLog.DELIVER, token,
+                                          now - committed.postedAt, null);
+                }
+                delivered = true;
+                finish();
+                return;
+            }
+
+            GetFromPostServlet.Result r = result;
+            // As in Job.run2: hold on to the body until finish()
+            while (r != null && r.body != null && !r.body.tryRetain())
+                r = result;
+            if (r != null) {
+                committed = r;
+                if (r.body != null) send(r.body.toByteBuffer());
+                else send(r.message);
+            } else if ((flags & GetFromPostServlet.KEEPALIVE) != 0) {
+                ping(now);
+            }
+        }
+
+        // Wakes an idle socket when its next ping is due, and one with a
+        // ping outstanding when the next would be due or its pong late,
+        // whichever is first; a frame on its way keeps the usual ticks
+        protected long keepaliveAfter(long now) {
+            if (sending || numRuns == 0) return super.keepaliveAfter(now);
+            long interval = TimeUnit.SECONDS.toNanos(servlet.socketPingInterval);
+            long pongTimeout = TimeUnit.SECONDS.toNanos(servlet.socketPongTimeout);
+            long sent = pingSentAt;
+            if (sent == 0) {
+                if (lastPingAt + interval - now > 0)
+                    return lastPingAt + interval;
+                sent = now;  // this tick sends it
+            }
+            long next = sent + Math.min(interval, pongTimeout);
+            if (next - now > 0) return next;
+            next = sent + pongTimeout;
+            return next - now > 0 ? next : super.keepaliveAfter(now);
+        }
+
+        protected void ping(long now) {
+            long sent = pingSentAt;
+            if (sent != 0) {
+                if (now - sent >= TimeUnit.SECONDS.toNanos(
+                                      servlet.socketPongTimeout)) {
+                    servlet.metrics.stalledDisconnects.increment();
+                    servlet.events.record(EventLog.STALLED, token);
+                    finish();
+                }
+                return;
+            }
+            if (now - lastPingAt < TimeUnit.SECONDS.toNanos(
+                                       servlet.socketPingInterval))
+                return;
+            pingSentAt = lastPingAt = now;
+            try {
+                session.getAsyncRemote().sendPing(ByteBuffer.allocate(0));
+                ++numRuns;
+            } catch (IOException e) {
+                servlet.metrics.ioFailures.increment();
+                servlet.events.record(EventLog.IO_FAILURE, token, 0, e);
+                finish();
+            }
+        }
+
+        protected void send(String text) {
+            sending = true;
+            writeStartedAt = System.nanoTime();
+            session.getAsyncRemote().sendText(text, this);
+        }
+
+        protected void send(ByteBuffer bytes) {
+            sending = true;
+            writeStartedAt = System.nanoTime();
+            session.getAsyncRemote().sendBinary(bytes, this);
+        }
+
+        // SendHandler method, called by the container (perhaps from inside
+        // the send, on the running thread)
+        public void onResult(SendResult r) {
+            if (!r.isOK()) {
+                servlet.metrics.ioFailures.increment();
+                servlet.events.record(EventLog.IO_FAILURE, token, 0,
+                                      r.getException());
+                schedule(GetFromPostServlet.IO_ERROR);
+                return;
+            }
+            sending = false;
+            schedule(GetFromPostServlet.POKE);
+        }
+
+        protected void close() {
+            try {
+                session.close();
+            } catch (IOException e) {
+                // it's going anyway
+            }
+        }
+    }
+
+    // Endpoint methods, called by the container
+    public void onOpen(Session session, EndpointConfig config) {
+        // Added once, for whichever job ends up on the connection. (The
+        // WebSocket 1.0 form, which finds the message type from the
+        // handler's class; some containers have nothing newer)
+        session.addMessageHandler(new MessageHandler.Whole<PongMessage>() {
+            public void onMessage(PongMessage m) {
+                SocketJob j = job;
+                if (j != null) j.pingSentAt = 0;
+            }
+        });
+        TokenRequest req = new Handshake(session);
+        AdmissionControl.Slot slot = servlet.pool.isSaturated() ? null :
+            servlet.admission.acquire(req.getRemoteUser(),
+                                      servlet.maxParkedGets,
+                                      servlet.maxParkedGetsPerUser);
+        if (slot == null) {
+            servlet.metrics.getRejects.increment();
+            close(session, CloseCodes.TRY_AGAIN_LATER, "Too many waiting");
+            return;
+        }
+        boolean parked = false;
+        try {
+            String baseURL = servlet.sharedBaseUrl(baseUrl(session));
+            TokenWithEndpoint resumed = servlet.tokenFactory.resumeToken(req);
+            if (resumed != null) {
+                SocketJob j = newJob(session, resumed, baseURL, slot);
+                if (servlet.pool.resumeJob(j)) {
+                    servlet.metrics.resumes.increment();
+                    parked = true;
+                    return;
+                }
+            }
+            TokenWithEndpoint tok = servlet.tokenFactory.mintToken(req);
+            servlet.metrics.mints.increment();
+            servlet.events.record(EventLog.MINT, tok);
+            servlet.pool.addJob(newJob(session, tok, baseURL, slot));
+            parked = true;
+        } catch (ServletException e) {
+            close(session, CloseCodes.VIOLATED_POLICY, "Not allowed");
+        } finally {
+            if (!parked) servlet.admission.release(slot);
+        }
+    }
+
+    public void onClose(Session session, CloseReason reason) {
+        SocketJob j = job;
+        if (j != null) j.schedule(GetFromPostServlet.IO_ERROR);
+    }
+
+    public void onError(Session session, Throwable t) {
+        SocketJob j = job;
+        servlet.metrics.ioFailures.increment();
+        servlet.events.record(EventLog.IO_FAILURE,
+                              j != null ? j.getToken() : null, 0, t);
+        if (j != null) j.schedule(GetFromPostServlet.IO_ERROR);
+    }
+
+    protected SocketJob newJob(Session session, TokenWithEndpoint tok,
+                               String baseURL, AdmissionControl.Slot slot) {
+        SocketJob j = new SocketJob(session, tok, baseURL);
+        j.admitted = slot;
+        job = j;
+        return j;
+    }
+
+    protected static void close(Session session, CloseCodes code, String why) {
+        try {
+            session.close(new CloseReason(code, why));
+        } catch (IOException e) {
+            // it's going anyway
+        }
+    }
+
+    /** "http://name/servlet-context", from the ws: URI of the handshake. */
+    protected String baseUrl(Session session) {
+        URI u = session.getRequestURI();
+        String scheme = "wss".equals(u.getScheme()) ? "https" : "http";
+        return scheme+"://"+u.getRawAuthority()+
+               servlet.getServletContext().getContextPath();
+    }
+
+    /** What the TokenFactory sees of the handshake: who the user is, and
+     *  the query parameters. */
+    protected static class Handshake implements TokenRequest {
+        final protected Session session;
+
+        Handshake(Session session_) { session = session_; }
+
+        public String getRemoteUser() {
+            Principal user = session.getUserPrincipal();
+            return user == null ? null : user.getName();
+        }
+
+        public String getParameter(String name) {
+            List<String> v = session.getRequestParameterMap().get(name);
+            return v == null || v.isEmpty() ? null : v.get(0);
+        }
+    }
+}
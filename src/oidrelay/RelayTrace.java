@@ -0,0 +1,69 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import oidrelay.GetFromPostServlet.TokenWithEndpoint;
+
+/**
+ * Where the servlet reports how long each stage of a request took, for
+ * profiling. This one throws the timings away; FlightTrace turns them into
+ * JDK Flight Recorder events, where the JVM has it.
+ *
+ * Callers check enabled() before taking any timestamps, so while nobody is
+ * recording the cost is one volatile read per stage. Times are
+ * System.nanoTime() values; durations are in nanoseconds.
+ */
+class RelayTrace {
+    /** Whether anything would be done with the timings just now. */
+    public boolean enabled() { return false; }
+
+    /** A GET parked: minting its token (0 if it resumed one), and
+     *  starting async processing. */
+    public void get(TokenWithEndpoint tok, long mint, long startAsync,
+                    long total, boolean resumed) { }
+
+    /** A POST answered: reading its body, then delivering it (locally, to
+     *  a peer, or to a scope). */
+    public void post(String endpoint, long read, long deliver, int bytes,
+                     boolean found) { }
+
+    /** JobPool.sendResult: waiting in the shard's inbox, then its work. */
+    public void sendResult(TokenWithEndpoint tok, long queued, long handled,
+                           boolean found) { }
+
+    /** A Job run: waiting for a worker after being scheduled (0 if it ran
+     *  again without going back to the queue), then run2. */
+    public void run(TokenWithEndpoint tok, long queued, long ran,
+                    int flags) { }
+
+    /** Output handed to the container, until it had all been accepted. */
+    public void write(TokenWithEndpoint tok, long duration, boolean result) { }
+
+    /** FlightTrace, if this JVM has jdk.jfr; otherwise one of us. */
+    static RelayTrace load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (RelayTrace)Class.forName("oidrelay.FlightTrace")
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return new RelayTrace();
+        } catch (LinkageError e) {
+            return new RelayTrace();
+        }
+    }
+}
@@ -18,9 +18,8 @@ SOFTWARE.
 */
 package oidrelay;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 
+import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebServlet;
@@ -34,10 +33,6 @@ public class TestServlet extends GetFromPostServlet
 {
     private static final long serialVersionUID = -4179102306415775743L;
 
-    private static String escape(String s)
-    { return s.replaceAll("&","&amp;").replaceAll("<","&lt;")
-        .replaceAll(">","&gt;").replaceAll("\"","&quot;").replaceAll("'", "&apos;"); }
-
     /**
      * The GET request is for the URL /api, the endpoint of a server wishing
      * to perform relayed OpenID authentication. A request for authentication
@@ -45,89 +40,147 @@ public class TestServlet extends GetFromPostServlet
      * The lines are:
      *   1. A line consisting of a URL, which indicates the OP endpoint (one)
      *   2. Lines "keep-alive..." (zero or more)
-     *   3. A line "OK: <string>" or "FAILED: <string>".
+     *   3. A line "OK: <the POSTed data>" or "FAILED: <string>".
      * The request must be made with a username set (for example, using BASIC or
      * DIGEST authentication, as configured).
+     *
+     * With "Accept: text/event-stream" the same reply comes as Server-Sent
+     * Events instead; see EventStreamFormatter.
+     *
+     * If the connection drops before line 3, "GET /api?id=<id>&resume=<URL>",
+     * with the URL from line 1, picks up where it left off.
+     *
+     * "GET /api?id=<id>&mux=1" is a multiplexed reply instead, carrying many
+     * logins: each "POST /api?stream=<URL>", with the URL from its line 1,
+     * answers with a new URL to POST to, and that POST's result comes down
+     * the GET as a line "<new URL> OK: <the POSTed data>" (or FAILED). The GET
+     * itself goes on until it times out.
+     *
+     * "POST /u/<user>/", made as that user, goes to all of the user's
+     * waiting GETs at once, each of which ends "OK: <the POSTed data>".
      */
     public TestServlet() {
         super();
         tokenFactory = new PerUserTokenFactory("/u/");
         requestHandler = new HtmlOutputFormatter("/api");
+        eventStream = new EventStreamFormatter(requestHandler);
+    }
+
+    protected RequestHandler eventStream;
+
+    /** Machine clients can ask for text/event-stream instead of HTML. */
+    @Override
+    protected RequestHandler handlerFor(HttpServletRequest req)
+    {
+        return EventStreamFormatter.isAccepted(req) ? eventStream :
+                                                      requestHandler;
+    }
+
+    // GenericServlet method
+    @Override
+    public void init() throws ServletException
+    {
+        if (nodeId >= 0)
+            ((PerUserTokenFactory)tokenFactory).setNode(nodeId);
+        super.init();
     }
     
     protected class HtmlOutputFormatter implements RequestHandler {
         protected String apiUri;
-        public HtmlOutputFormatter(String apiUri_) { apiUri = apiUri_; }
+        // Compiled once; see ByteTemplate for the slot syntax
+        final protected ByteTemplate postAccepted, postNotFound;
+        final protected ByteTemplate replyHeader, replyKeepalive, replyResult,
+                                     replyComplete, replyTaggedResult,
+                                     replyTaggedComplete;
+
+        public HtmlOutputFormatter(String apiUri_) {
+            apiUri = apiUri_;
+            String postPage = "<!DOCTYPE html>\r\n"+
+                "<html><head><title>POST result</title></head>\r\n"+
+                "<body>\r\n"+
+                "<p>{0}\r\n"+
+                "</body></html>\r\n";
+            postAccepted = ByteTemplate.compile(
+                postPage.replace("{0}", "Setting auth as accepted."));
+            postNotFound = ByteTemplate.compile(
+                postPage.replace("{0}", "Fatal error, token not found."));
+
+            StringBuilder header = new StringBuilder();
+            header.append("<!DOCTYPE html>\r\n");
+            header.append("<html><head><title>Requesting</title></head>\r\n");
+            header.append("<body>\r\n");
+            // Some junk to get browsers to do incremental rendering straight away
+            for (int i = 0; i < 18; ++i)
+                header.append("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->\r\n");
+            // The iframe is URL-encoded into a data: URI. Percent-encoding
+            // works character by character, so the fixed parts can be encoded
+            // now and only the endpoint needs doing per request.
+            header.append("<a href='data:text/html;charset=utf-8,");
+            header.append(ByteTemplate.uriEncode(
+                "<!DOCTYPE html><html><body><form method='POST' action=\""));
+            header.append("{0:html:uri}");
+            header.append(ByteTemplate.uriEncode(
+                "\"><input type='submit' value='Go to auth'></form></body></html>"));
+            header.append("'>POST to {0:html}</a>\r\n");
+            replyHeader = ByteTemplate.compile(header.toString());
+            replyKeepalive = ByteTemplate.compile("<p>...keep-alive{0}\r\n");
+            replyResult = ByteTemplate.compile(
+                "<p>OK: {0:html}\r\n</body>\r\n</html>\r\n");
+            replyComplete = ByteTemplate.compile("<p>{0}\r\n</body>\r\n</html>\r\n");
+            replyTaggedResult = ByteTemplate.compile("<p>{0:html} OK: {1:html}\r\n");
+            replyTaggedComplete = ByteTemplate.compile("<p>{0:html} {1:html}\r\n");
+        }
 
         public void formatPostResult(HttpServletResponse resp, boolean dispatched)
                 throws IOException
         {
             ServletOutputStream out = resp.getOutputStream();
             resp.setCharacterEncoding("UTF-8");
-            out.println("<!DOCTYPE html>");
-            out.println("<html><head><title>POST result</title></head>");
-            out.println("<body>");
-            String message = dispatched ? "Setting auth as accepted."
-                                        : "Fatal error, token not found.";
-            out.println("<p>"+message);
-            out.println("</body></html>");
+            (dispatched ? postAccepted : postNotFound).render(out);
         }
 
-        public String formatPostMessage() { return "OK: dummy result for now"; }
-
         public void formatReplyHeader(ServletResponse resp, String endpoint)
                 throws IOException
         {
             resp.setCharacterEncoding("UTF-8");
-            ServletOutputStream out = resp.getOutputStream();
-
-            out.println("<!DOCTYPE html>");
-            out.println("<html><head><title>Requesting</title></head>");
-            out.println("<body>");
-            // Some junk to get browsers to do incremental rendering straight away
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            out.println("<!-- juuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuk -->");
-            String iframe = "<!DOCTYPE html><html><body>"+
-                "<form method='POST' action=\""+escape(endpoint)+"\">"+
-                "<input type='submit' value='Go to auth'></form></body></html>";
-            try {
-                out.println("<a href='data:text/html;charset=utf-8,"+
-                        URLEncoder.encode(iframe,"UTF-8").replaceAll("\\+", "%20")+"'>"+
-                        "POST to "+escape(endpoint)+"</a>");
-            } catch (UnsupportedEncodingException e) { e.printStackTrace(); }
+            replyHeader.render(resp.getOutputStream(), endpoint);
         }
 
+        // Lines keep-alive0 to keep-alive<n-1>, as ever, but only the new
+        // ones go out; the client already has the earlier ones. (Keepalives
+        // start at run 2, so the first sends two)
         public void formatReplyKeepalive(ServletResponse resp, int n)
                 throws IOException
         {
             ServletOutputStream out = resp.getOutputStream();
-            for (int i = 0; i < n; ++i)
-                out.println("<p>...keep-alive"+i);
+            for (int i = n <= 2 ? 0 : n - 1; i < n; ++i)
+                replyKeepalive.render(out, i);
+        }
+
+        public void formatReplyResult(ServletResponse resp, Payload body)
+                throws IOException
+        {
+            replyResult.render(resp.getOutputStream(), body);
         }
 
         public void formatReplyComplete(ServletResponse resp, String message)
                 throws IOException
         {
-            ServletOutputStream out = resp.getOutputStream();
-            out.println("<p>"+message);
-            out.println("</body>");
-            out.println("</html>");
+            replyComplete.render(resp.getOutputStream(), message);
+        }
+
+        public void formatReplyTaggedResult(ServletResponse resp, String tag,
+                                            Payload body)
+                throws IOException
+        {
+            replyTaggedResult.render(resp.getOutputStream(), tag, body);
+        }
+
+        public void formatReplyTaggedComplete(ServletResponse resp, String tag,
+                                              String message)
+                throws IOException
+        {
+            replyTaggedComplete.render(resp.getOutputStream(), tag, message);
         }
 
         public boolean validateReplyRequest(HttpServletRequest req,
@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+
+/**
+ * A hierarchical timing wheel, in the style of the old Linux kernel timers.
+ * There are LEVELS wheels of SLOTS slots each; level 0 has one slot per tick,
+ * and each level above covers SLOTS times the span of the one below. A timer
+ * sits in the coarsest slot that still pins down its expiry, and is cascaded
+ * down a level each time the wheel below wraps. Scheduling and cancelling are
+ * O(1), and advancing by one tick only touches the timers in that tick's
+ * slot (plus an occasional cascade), not every timer in the wheel.
+ *
+ * Expiry is kept as an absolute tick, so if the owner is late calling
+ * advance() the missed ticks are simply caught up and nothing drifts.
+ *
+ * The wheel is not thread-safe. Each JobPool shard owns one and only touches
+ * it from the shard thread.
+ */
+class TimingWheel {
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+
+    /** Something which can sit in the wheel. The links are intrusive, so a
+     *  scheduled timer costs no allocation. */
+    static abstract class Timer {
+        Timer prev = null, next = null;
+        long expiryTick;
+        public boolean isScheduled() { return next != null; }
+        /** Called on the owning thread once the timer falls due. The timer
+         *  is no longer scheduled, and may reschedule itself. */
+        protected abstract void expire(TimingWheel wheel, long now);
+    }
+
+    static final class Head extends Timer {
+        Head() { prev = next = this; }
+        protected void expire(TimingWheel wheel, long now) { }
+    }
+
+    final protected long tickNanos;
+    final protected long origin;
+    protected long currentTick = 0;
+    protected int size = 0;
+    final protected Head[] slots = new Head[LEVELS*SLOTS];
+
+    TimingWheel(long tickNanos_, long now) {
+        tickNanos = tickNanos_;
+        origin = now;
+        for (int i = 0; i < slots.length; ++i) slots[i] = new Head();
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    /** Arranges for t to expire at (or just after) the System.nanoTime()
+     *  value deadline, replacing any existing schedule for it. */
+    public void schedule(Timer t, long deadline) {
+        if (t.isScheduled()) cancel(t);
+        long delta = deadline - origin;
+        long tick = delta <= 0 ? 0 : (delta + tickNanos - 1) / tickNanos;
+        t.expiryTick = Math.max(tick, currentTick + 1);
+        place(t);
+        ++size;
+    }
+
+    public void cancel(Timer t) {
+        if (!t.isScheduled()) return;
+        unlink(t);
+        --size;
+    }
+
+    /** Expires every timer due at or before now. */
+    public void advance(long now) {
+        long target = (now - origin) / tickNanos;
+        if (size == 0) {
+            if (target > currentTick) currentTick = target;
+            return;
+        }
+        while (currentTick < target) {
+            ++currentTick;
+            for (int level = LEVELS - 1; level > 0; --level) {
+                if ((currentTick & ((1L << (SLOT_BITS*level)) - 1)) == 0)
+                    cascade(level);
+            }
+            Head head = slots[(int)(currentTick & (SLOTS - 1))];
+            while (head.next != head) {
+                Timer t = head.next;
+                unlink(t);
+                if (t.expiryTick > currentTick) {
+                    place(t);  // parked at the far end of the top level
+                    continue;
+                }
+                --size;
+                t.expire(this, now);
+            }
+            if (size == 0) {
+                currentTick = target;
+                break;
+            }
+        }
+    }
+
+    /** @return the System.nanoTime() at which advance() next has work to
+     *  do. Only meaningful if the wheel is not empty. */
+    public long nextWakeup() {
+        for (int i = 1; i <= SLOTS; ++i) {
+            long tick = currentTick + i;
+            Head head = slots[(int)(tick & (SLOTS - 1))];
+            if (head.next != head || (tick & (SLOTS - 1)) == 0)
+                return origin + tick*tickNanos;
+        }
+        return origin + (currentTick + 1)*tickNanos;
+    }
+
+    protected void cascade(int level) {
+        int slot = (int)(currentTick >>> (SLOT_BITS*level)) & (SLOTS - 1);
+        Head head = slots[level*SLOTS + slot];
+        while (head.next != head) {
+            Timer t = head.next;
+            unlink(t);
+            place(t);
+        }
+    }
+
+    protected void place(Timer t) {
+        long delta = t.expiryTick - currentTick;
+        int level = 0;
+        long tick = t.expiryTick;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS*(level + 1))))
+            ++level;
+        if (delta >= (1L << (SLOT_BITS*LEVELS)))
+            // Beyond the span of the wheel: park it as far out as we can and
+            // let it cascade round again.
+            tick = currentTick + (1L << (SLOT_BITS*LEVELS)) - 1;
+        int slot = (int)(tick >>> (SLOT_BITS*level)) & (SLOTS - 1);
+        Head head = slots[level*SLOTS + slot];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+    }
+
+    protected static void unlink(Timer t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2013 Nicholas Wilson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package oidrelay;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Random ids and their hex form, for the token factories. Ids are 128 bits,
+ * handled as two longs so they can be compared and hashed without building
+ * strings.
+ *
+ * Randomness comes from a small array of SecureRandom instances, striped by
+ * thread, so concurrent GETs don't all queue on one generator. (A ThreadLocal
+ * would do as well, but leaks the instances when a webapp is redeployed.)
+ */
+class TokenCodec {
+    static final char[] HEX = "0123456789abcdef".toCharArray();
+    static final byte[] UNHEX = new byte[128];
+    static {
+        for (int i = 0; i < UNHEX.length; ++i) UNHEX[i] = -1;
+        for (int i = 0; i < 10; ++i) UNHEX['0' + i] = (byte)i;
+        for (int i = 0; i < 6; ++i) {
+            UNHEX['a' + i] = (byte)(10 + i);
+            UNHEX['A' + i] = (byte)(10 + i);
+        }
+    }
+
+    static final class Stripe {
+        final SecureRandom random;
+        final byte[] buf = new byte[8];
+        Stripe() {
+            SecureRandom r;
+            try {
+                // Pure Java and per-instance, unlike NativePRNG which shares
+                // one lock across every instance in the JVM
+                r = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                r = new SecureRandom();
+            }
+            r.nextBytes(buf);  // force seeding now rather than on a request
+            random = r;
+        }
+    }
+    static final Stripe[] stripes;
+    static {
+        int n = Integer.highestOneBit(
+                    Math.max(1, Runtime.getRuntime().availableProcessors())*2 - 1)*2;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; ++i) stripes[i] = new Stripe();
+    }
+
+    public static long randomLong() {
+        long tid = Thread.currentThread().getId();
+        Stripe s = stripes[(int)(tid ^ (tid >>> 16)) & (stripes.length - 1)];
+        synchronized (s) {
+            s.random.nextBytes(s.buf);
+            long v = 0;
+            for (byte b : s.buf) v = (v << 8) | (b & 0xff);
+            return v;
+        }
+    }
+
+    /** Appends v as 16 lowercase hex digits. */
+    public static void appendHex(StringBuilder sb, long v) {
+        for (int shift = 60; shift >= 0; shift -= 4)
+            sb.append(HEX[(int)(v >>> shift) & 0xf]);
+    }
+
+    /** @return whether s has len hex digits starting at off */
+    public static boolean isHex(CharSequence s, int off, int len) {
+        if (off < 0 || off + len > s.length()) return false;
+        for (int i = off; i < off + len; ++i) {
+            char c = s.charAt(i);
+            if (c >= 128 || UNHEX[c] < 0) return false;
+        }
+        return true;
+    }
+
+    /** Parses 16 hex digits starting at off, which isHex() has checked. */
+    public static long parseHex(CharSequence s, int off) {
+        long v = 0;
+        for (int i = off; i < off + 16; ++i)
+            v = (v << 4) | UNHEX[s.charAt(i)];
+        return v;
+    }
+}